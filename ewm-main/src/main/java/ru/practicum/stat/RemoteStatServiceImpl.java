@@ -8,12 +8,10 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import ru.practicum.StatsClient;
-import ru.practicum.StatsDtoResponse;
 import ru.practicum.event.Event;
 
 import javax.servlet.http.HttpServletRequest;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -24,7 +22,7 @@ import java.util.Map;
 @Slf4j
 @AllArgsConstructor
 public class RemoteStatServiceImpl implements RemoteStatService {
-    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final int MAX_EVENTS_PER_REQUEST = 1000;
     private final StatsClient client;
     private final ObjectMapper objectMapper;
 
@@ -36,25 +34,32 @@ public class RemoteStatServiceImpl implements RemoteStatService {
 
     @Override
     public Map<Long, Integer> getStats(List<Event> events) {
-        LocalDateTime start = LocalDateTime.now();
-        LocalDateTime end = start;
-        List<String> uris = new ArrayList<>();
+        List<Map<Long, LocalDateTime>> chunks = new ArrayList<>();
+        Map<Long, LocalDateTime> since = new HashMap<>();
         Map<Long, Integer> result = new HashMap<>();
 
         for (Event env : events) {
-            if (env.getPublishedOn() != null && env.getPublishedOn().isBefore(start)) {
-                start = env.getPublishedOn();
+            if (env.getPublishedOn() != null) {
+                since.put(env.getId(), env.getPublishedOn());
             }
-            uris.add("/events/" + env.getId());
+            if (since.size() == MAX_EVENTS_PER_REQUEST) {
+                chunks.add(since);
+                since = new HashMap<>();
+            }
+        }
+        if (!since.isEmpty()) {
+            chunks.add(since);
         }
 
-        ResponseEntity<Object> response = client.getStats(start.format(FORMAT), end.format(FORMAT), uris, true);
-        List<StatsDtoResponse> stats = objectMapper.convertValue(response.getBody(), new TypeReference<>() { });
-        if (!stats.isEmpty()) {
-            for (StatsDtoResponse st : stats) {
-                String[] event = st.getUri().split("/");
-                result.put(Long.parseLong(event[event.length - 1]), st.getHits());
+        for (Map<Long, LocalDateTime> chunk : chunks) {
+            ResponseEntity<Object> response = client.getViews(null, chunk);
+            if (!response.getStatusCode().is2xxSuccessful()) {
+                log.warn("Views of {} events not received, stats service answered {}", chunk.size(),
+                        response.getStatusCode());
+                continue;
             }
+            Map<Long, Long> views = objectMapper.convertValue(response.getBody(), new TypeReference<>() { });
+            views.forEach((id, count) -> result.put(id, count.intValue()));
         }
         return result;
     }
@@ -0,0 +1,165 @@
+package ru.practicum;
+
+import lombok.experimental.UtilityClass;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Compact binary form of {@link StatsDtoRequest} batches, an alternative to JSON for bulk ingestion.
+ * <p>
+ * A batch is a version byte followed by records, each prefixed with its length as a big-endian int.
+ * A record holds the timestamp as epoch seconds of the local date-time ({@code long}), the ip as a
+ * length byte (4 or 16) and the address bytes, then app and uri as an unsigned {@code short} length
+ * and UTF-8 bytes.
+ */
+@UtilityClass
+public class HitCodec {
+    public static final String MEDIA_TYPE = "application/x-ewm-hits";
+    private static final byte VERSION = 1;
+    private static final int IPV4_LENGTH = 4;
+    private static final int IPV6_LENGTH = 16;
+    private static final int MAX_STRING_LENGTH = 0xffff;
+
+    public static byte[] encode(Collection<StatsDtoRequest> requests) {
+        List<byte[]> records = new ArrayList<>(requests.size());
+        int size = 1;
+        for (StatsDtoRequest request : requests) {
+            byte[] record = encodeRecord(request);
+            records.add(record);
+            size += Integer.BYTES + record.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(VERSION);
+        for (byte[] record : records) {
+            buffer.putInt(record.length);
+            buffer.put(record);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Decodes a batch and checks every record the way bean validation checks a JSON request.
+     *
+     * @throws IllegalArgumentException if the batch is malformed or a record is not a valid hit
+     */
+    public static List<StatsDtoRequest> decode(byte[] body) {
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        if (!buffer.hasRemaining() || buffer.get() != VERSION) {
+            throw new IllegalArgumentException("Unsupported hit batch version");
+        }
+        List<StatsDtoRequest> requests = new ArrayList<>();
+        LocalDateTime now = LocalDateTime.now();
+        try {
+            while (buffer.hasRemaining()) {
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    throw new IllegalArgumentException("Hit record " + requests.size() + " is truncated");
+                }
+                ByteBuffer record = buffer.slice();
+                record.limit(length);
+                StatsDtoRequest request = decodeRecord(record);
+                if (record.hasRemaining()) {
+                    throw new IllegalArgumentException("Hit record " + requests.size() + " has trailing bytes");
+                }
+                if (request.getTimestamp().isAfter(now)) {
+                    throw new IllegalArgumentException("Hit record " + requests.size() + " is in the future");
+                }
+                requests.add(request);
+                buffer.position(buffer.position() + length);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Hit batch is truncated");
+        }
+        if (requests.isEmpty()) {
+            throw new IllegalArgumentException("Hit batch is empty");
+        }
+        return requests;
+    }
+
+    public static byte[] encodeRecord(StatsDtoRequest request) {
+        byte[] ip = toBytes(request.getIp());
+        byte[] app = toUtf8(request.getApp(), "app");
+        byte[] uri = toUtf8(request.getUri(), "uri");
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES + 1 + ip.length + Short.BYTES + app.length +
+                Short.BYTES + uri.length);
+        buffer.putLong(request.getTimestamp().toEpochSecond(ZoneOffset.UTC));
+        buffer.put((byte) ip.length);
+        buffer.put(ip);
+        buffer.putShort((short) app.length);
+        buffer.put(app);
+        buffer.putShort((short) uri.length);
+        buffer.put(uri);
+        return buffer.array();
+    }
+
+    /**
+     * Reads one record from the buffer position.
+     *
+     * @throws BufferUnderflowException if the record is truncated
+     */
+    public static StatsDtoRequest decodeRecord(ByteBuffer buffer) {
+        LocalDateTime timestamp = LocalDateTime.ofEpochSecond(buffer.getLong(), 0, ZoneOffset.UTC);
+        int ipLength = buffer.get();
+        if (ipLength != IPV4_LENGTH && ipLength != IPV6_LENGTH) {
+            throw new IllegalArgumentException("Hit ip must be 4 or 16 bytes long");
+        }
+        byte[] ip = new byte[ipLength];
+        buffer.get(ip);
+        String app = readUtf8(buffer, "app");
+        String uri = readUtf8(buffer, "uri");
+        return new StatsDtoRequest(app, uri, toText(ip), timestamp);
+    }
+
+    private static byte[] toBytes(String ip) {
+        long ipv4 = IpAddresses.parseIpv4(ip);
+        if (ipv4 >= 0) {
+            return new byte[]{(byte) (ipv4 >>> 24), (byte) (ipv4 >>> 16), (byte) (ipv4 >>> 8), (byte) ipv4};
+        }
+        byte[] ipv6 = new byte[IPV6_LENGTH];
+        if (!IpAddresses.parseIpv6(ip, ipv6)) {
+            throw new IllegalArgumentException("Hit ip is not a valid address: " + ip);
+        }
+        return ipv6;
+    }
+
+    private static String toText(byte[] ip) {
+        if (ip.length == IPV4_LENGTH) {
+            return (ip[0] & 0xff) + "." + (ip[1] & 0xff) + "." + (ip[2] & 0xff) + "." + (ip[3] & 0xff);
+        }
+        try {
+            return InetAddress.getByAddress(ip).getHostAddress();
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Hit ip is not a valid address", e);
+        }
+    }
+
+    private static byte[] toUtf8(String value, String field) {
+        if (value == null || value.isBlank()) {
+            throw new IllegalArgumentException("Hit " + field + " must not be blank");
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_LENGTH) {
+            throw new IllegalArgumentException("Hit " + field + " is too long");
+        }
+        return bytes;
+    }
+
+    private static String readUtf8(ByteBuffer buffer, String field) {
+        byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+        buffer.get(bytes);
+        String value = new String(bytes, StandardCharsets.UTF_8);
+        if (value.isBlank()) {
+            throw new IllegalArgumentException("Hit " + field + " must not be blank");
+        }
+        return value;
+    }
+}
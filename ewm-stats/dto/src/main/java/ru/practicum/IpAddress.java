@@ -0,0 +1,18 @@
+package ru.practicum;
+
+import javax.validation.Constraint;
+import javax.validation.Payload;
+import java.lang.annotation.*;
+
+@Target({ElementType.FIELD, ElementType.PARAMETER})
+@Retention(RetentionPolicy.RUNTIME)
+@Constraint(validatedBy = IpAddressValidator.class)
+@Documented
+public @interface IpAddress {
+
+    String message() default "must be an IPv4 or IPv6 address";
+
+    Class<?>[] groups() default {};
+
+    Class<? extends Payload>[] payload() default {};
+}
@@ -0,0 +1,12 @@
+package ru.practicum;
+
+import javax.validation.ConstraintValidator;
+import javax.validation.ConstraintValidatorContext;
+
+public class IpAddressValidator implements ConstraintValidator<IpAddress, CharSequence> {
+
+    @Override
+    public boolean isValid(CharSequence value, ConstraintValidatorContext context) {
+        return value == null || IpAddresses.isValid(value);
+    }
+}
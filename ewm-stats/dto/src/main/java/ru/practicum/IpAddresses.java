@@ -0,0 +1,184 @@
+package ru.practicum;
+
+import lombok.experimental.UtilityClass;
+
+/**
+ * Allocation-free parsing of textual IPv4 and IPv6 addresses.
+ */
+@UtilityClass
+public class IpAddresses {
+    private static final int IPV6_GROUPS = 8;
+
+    public static boolean isValid(CharSequence value) {
+        return parseIpv4(value) >= 0 || parseIpv6(value, null);
+    }
+
+    /**
+     * @return the address as an unsigned 32-bit value, or -1 if the value is not a dotted-quad IPv4 address
+     */
+    public static long parseIpv4(CharSequence value) {
+        return parseIpv4(value, 0, value.length());
+    }
+
+    /**
+     * Parses an IPv6 address, including {@code ::} compression and an embedded IPv4 tail.
+     *
+     * @param out receives the 16 address bytes, may be null to only validate the value
+     * @return false if the value is not an IPv6 address
+     */
+    public static boolean parseIpv6(CharSequence value, byte[] out) {
+        int length = value.length();
+        if (length < 2) {
+            return false;
+        }
+        long headHigh = 0;
+        long headLow = 0;
+        long tailHigh = 0;
+        long tailLow = 0;
+        int headGroups = 0;
+        int tailGroups = 0;
+        boolean compressed = false;
+        int i = 0;
+        if (value.charAt(0) == ':') {
+            if (value.charAt(1) != ':') {
+                return false;
+            }
+            compressed = true;
+            i = 2;
+        }
+        while (i < length) {
+            int start = i;
+            int group = 0;
+            int digits = 0;
+            while (i < length && digits <= 4) {
+                int digit = hexDigit(value.charAt(i));
+                if (digit < 0) {
+                    break;
+                }
+                group = group << 4 | digit;
+                digits++;
+                i++;
+            }
+            if (i < length && value.charAt(i) == '.') {
+                long ipv4 = parseIpv4(value, start, length);
+                if (ipv4 < 0) {
+                    return false;
+                }
+                if (compressed) {
+                    tailHigh = tailHigh << 32 | tailLow >>> 32;
+                    tailLow = tailLow << 32 | ipv4;
+                    tailGroups += 2;
+                } else {
+                    headHigh = headHigh << 32 | headLow >>> 32;
+                    headLow = headLow << 32 | ipv4;
+                    headGroups += 2;
+                }
+                break;
+            }
+            if (digits == 0 || digits > 4) {
+                return false;
+            }
+            if (compressed) {
+                tailHigh = tailHigh << 16 | tailLow >>> 48;
+                tailLow = tailLow << 16 | group;
+                tailGroups++;
+            } else {
+                headHigh = headHigh << 16 | headLow >>> 48;
+                headLow = headLow << 16 | group;
+                headGroups++;
+            }
+            if (headGroups + tailGroups > IPV6_GROUPS) {
+                return false;
+            }
+            if (i == length) {
+                break;
+            }
+            if (value.charAt(i++) != ':' || i == length) {
+                return false;
+            }
+            if (value.charAt(i) == ':') {
+                if (compressed) {
+                    return false;
+                }
+                compressed = true;
+                i++;
+            }
+        }
+        int groups = headGroups + tailGroups;
+        if (compressed ? groups >= IPV6_GROUPS : groups != IPV6_GROUPS) {
+            return false;
+        }
+        if (out != null) {
+            int shift = 16 * (IPV6_GROUPS - headGroups);
+            long high;
+            long low;
+            if (shift >= 128) {
+                high = 0;
+                low = 0;
+            } else if (shift >= 64) {
+                high = headLow << (shift - 64);
+                low = 0;
+            } else if (shift > 0) {
+                high = headHigh << shift | headLow >>> (64 - shift);
+                low = headLow << shift;
+            } else {
+                high = headHigh;
+                low = headLow;
+            }
+            high |= tailHigh;
+            low |= tailLow;
+            for (int b = 0; b < 8; b++) {
+                out[b] = (byte) (high >>> (56 - 8 * b));
+                out[b + 8] = (byte) (low >>> (56 - 8 * b));
+            }
+        }
+        return true;
+    }
+
+    private static long parseIpv4(CharSequence value, int from, int to) {
+        long address = 0;
+        int octets = 0;
+        int octet = 0;
+        int digits = 0;
+        for (int i = from; i < to; i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (digits == 1 && octet == 0) {
+                    return -1;
+                }
+                octet = octet * 10 + (c - '0');
+                digits++;
+                if (octet > 255) {
+                    return -1;
+                }
+            } else if (c == '.') {
+                if (digits == 0 || octets == 3) {
+                    return -1;
+                }
+                address = address << 8 | octet;
+                octets++;
+                octet = 0;
+                digits = 0;
+            } else {
+                return -1;
+            }
+        }
+        if (digits == 0 || octets != 3) {
+            return -1;
+        }
+        return address << 8 | octet;
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+}
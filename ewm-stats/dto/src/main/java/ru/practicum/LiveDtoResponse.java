@@ -0,0 +1,29 @@
+package ru.practicum;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+public class LiveDtoResponse {
+
+    private String app;
+
+    private String uri;
+
+    private Long hits1m;
+
+    private Long hits5m;
+
+    private Long hits15m;
+
+    private Long unique1m;
+
+    private Long unique5m;
+
+    private Long unique15m;
+}
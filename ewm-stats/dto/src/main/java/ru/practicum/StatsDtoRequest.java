@@ -9,7 +9,6 @@ import lombok.Setter;
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.PastOrPresent;
-import javax.validation.constraints.Pattern;
 import java.time.LocalDateTime;
 
 @NoArgsConstructor
@@ -25,7 +24,7 @@ public class StatsDtoRequest {
     private String uri;
 
     @NotBlank
-    @Pattern(regexp = "^(([0-9]|[1-9][0-9]|1[0-9][0-9]|2[0-4][0-9]|25[0-5])(\\.(?!$)|$)){4}$")
+    @IpAddress
     private String ip;
 
     @NotNull
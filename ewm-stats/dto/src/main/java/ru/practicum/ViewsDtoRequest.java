@@ -0,0 +1,44 @@
+package ru.practicum;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotEmpty;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Positive;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Unique views of {@code /events/{id}} uris, each counted from its own {@code since}.
+ */
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Setter
+public class ViewsDtoRequest {
+
+    private String app;
+
+    @NotEmpty
+    private List<@NotNull @Valid EventSince> events;
+
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @Getter
+    @Setter
+    public static class EventSince {
+
+        @NotNull
+        @Positive
+        private Long id;
+
+        @NotNull
+        @JsonFormat(pattern = "yyyy-MM-dd HH:mm:ss")
+        private LocalDateTime since;
+    }
+}
@@ -4,6 +4,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.stereotype.Service;
@@ -11,7 +12,9 @@ import org.springframework.web.util.DefaultUriBuilderFactory;
 
 import javax.servlet.http.HttpServletRequest;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 @Slf4j
@@ -40,6 +43,14 @@ public class StatsClient extends BaseClient {
         );
     }
 
+    /**
+     * Sends a batch of hits in the binary {@link HitCodec} form, which the server ingests without JSON parsing.
+     */
+    public ResponseEntity<Object> createHits(List<StatsDtoRequest> requests) {
+        log.info("POST binary Hits batch, size: {}", requests.size());
+        return post("/hits", HitCodec.encode(requests), MediaType.parseMediaType(HitCodec.MEDIA_TYPE));
+    }
+
     public ResponseEntity<Object> getStats(String start, String end, Collection<String> uris, Boolean uniq) {
         Map<String, Object> parameters = Map.of(
                 "start", start,
@@ -50,4 +61,41 @@ public class StatsClient extends BaseClient {
         log.info("GET Stat request");
         return get("/stats?start={start}&end={end}&uris={uris}&unique={unique}", parameters);
     }
+
+    /**
+     * Stats of all uris starting with {@code uriPrefix}, without listing them in the url.
+     */
+    public ResponseEntity<Object> getStatsByPrefix(String start, String end, String uriPrefix, Boolean uniq) {
+        Map<String, Object> parameters = Map.of(
+                "start", start,
+                "end", end,
+                "uriPrefix", uriPrefix,
+                "unique", uniq
+        );
+        log.info("GET Stat request, uri prefix: {}", uriPrefix);
+        return get("/stats?start={start}&end={end}&uriPrefix={uriPrefix}&unique={unique}", parameters);
+    }
+
+    /**
+     * Hit and unique counts of the last 1, 5 and 15 minutes of the given uris, as seen by the server.
+     */
+    public ResponseEntity<Object> getLive(Collection<String> uris) {
+        Map<String, Object> parameters = Map.of(
+                "uris", String.join(",", uris)
+        );
+        log.info("GET Live stats request");
+        return get("/stats/live?uris={uris}", parameters);
+    }
+
+    /**
+     * Unique views of {@code /events/{id}} per event id, each counted from its own start.
+     *
+     * @param app app to count, all apps when null
+     */
+    public ResponseEntity<Object> getViews(String app, Map<Long, LocalDateTime> since) {
+        List<ViewsDtoRequest.EventSince> events = new ArrayList<>(since.size());
+        since.forEach((id, start) -> events.add(new ViewsDtoRequest.EventSince(id, start)));
+        log.info("POST Views request, events: {}", events.size());
+        return post("/stats/views", new ViewsDtoRequest(app, events));
+    }
 }
@@ -0,0 +1,28 @@
+package ru.practicum.config;
+
+import lombok.experimental.UtilityClass;
+
+import java.util.function.Supplier;
+
+/**
+ * Marks work done outside a read-only transaction as read-only, so that its statements may be
+ * routed to a replica as well.
+ */
+@UtilityClass
+public class ReadOnlyRouting {
+    private static final ThreadLocal<Boolean> READ_ONLY = ThreadLocal.withInitial(() -> false);
+
+    public static <T> T run(Supplier<T> work) {
+        boolean outer = READ_ONLY.get();
+        READ_ONLY.set(true);
+        try {
+            return work.get();
+        } finally {
+            READ_ONLY.set(outer);
+        }
+    }
+
+    public static boolean isActive() {
+        return READ_ONLY.get();
+    }
+}
@@ -0,0 +1,52 @@
+package ru.practicum.config;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import javax.sql.DataSource;
+import java.util.List;
+
+/**
+ * Takes replicas out of rotation while they are unreachable, not streaming from the primary, or their
+ * replay lags more than {@code maxLagSeconds} behind the primary. A streaming replica that has
+ * replayed everything it received counts as not lagging, so an idle primary does not make replicas
+ * look stale; a disconnected one has nothing left to replay and must not look current.
+ * <p>
+ * A replica streams while it is in recovery, has received WAL and runs a WAL receiver. Roles without
+ * {@code pg_read_all_stats} see only the pid of {@code pg_stat_wal_receiver}, so only the presence of
+ * its row is checked, and the monitor works with a plain application role.
+ */
+@RequiredArgsConstructor
+@Slf4j
+public class ReplicaLagMonitor {
+    private static final String SELECT_LAG = "select case " +
+            "when not pg_is_in_recovery() or pg_last_wal_receive_lsn() is null " +
+            "or not exists (select 1 from pg_stat_wal_receiver) then null " +
+            "when pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() then 0 " +
+            "else coalesce(extract(epoch from now() - pg_last_xact_replay_timestamp()), 0) end";
+    private final ReplicaRoutingDataSource routing;
+    private final double maxLagSeconds;
+
+    @Scheduled(fixedDelayString = "${ewm-stats-service.replicas.check-interval-ms:5000}")
+    public void check() {
+        List<DataSource> replicas = routing.getReplicas();
+        for (int i = 0; i < replicas.size(); i++) {
+            try {
+                Double lag = new JdbcTemplate(replicas.get(i)).queryForObject(SELECT_LAG, Double.class);
+                boolean healthy = lag != null && lag <= maxLagSeconds;
+                if (lag == null) {
+                    log.warn("Replica {} is not streaming from the primary", i);
+                } else if (!healthy) {
+                    log.warn("Replica {} lags {} seconds behind", i, lag);
+                }
+                routing.setHealthy(i, healthy);
+            } catch (DataAccessException e) {
+                log.warn("Replica {} is unreachable: {}", i, e.getMessage());
+                routing.setHealthy(i, false);
+            }
+        }
+    }
+}
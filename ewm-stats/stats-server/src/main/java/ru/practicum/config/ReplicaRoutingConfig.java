@@ -0,0 +1,70 @@
+package ru.practicum.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Routes read-only work to the replicas listed in {@code ewm-stats-service.replicas.urls}. Without
+ * that property the single auto-configured data source is used as before.
+ */
+@Configuration
+@ConditionalOnProperty("ewm-stats-service.replicas.urls")
+public class ReplicaRoutingConfig {
+
+    @Bean
+    @ConfigurationProperties("spring.datasource.hikari")
+    public HikariDataSource primaryDataSource(DataSourceProperties properties) {
+        HikariDataSource dataSource = properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        dataSource.setPoolName("primary");
+        return dataSource;
+    }
+
+    @Bean
+    public ReplicaRoutingDataSource replicaRoutingDataSource(@Qualifier("primaryDataSource") DataSource primary,
+                                                             DataSourceProperties properties,
+                                                             @Value("${ewm-stats-service.replicas.urls}") List<String> urls,
+                                                             @Value("${ewm-stats-service.replicas.pool-size:10}")
+                                                             int poolSize) {
+        List<DataSource> replicas = new ArrayList<>();
+        for (String url : urls) {
+            HikariDataSource replica = properties.initializeDataSourceBuilder()
+                    .type(HikariDataSource.class)
+                    .url(url)
+                    .build();
+            replica.setPoolName("replica-" + replicas.size());
+            replica.setMaximumPoolSize(poolSize);
+            replica.setReadOnly(true);
+            replicas.add(replica);
+        }
+        return new ReplicaRoutingDataSource(primary, replicas);
+    }
+
+    /**
+     * The connection is taken from the routing data source only at the first statement, when the
+     * read-only flag of the surrounding transaction is already known.
+     */
+    @Bean
+    @Primary
+    public DataSource dataSource(ReplicaRoutingDataSource routing) {
+        return new LazyConnectionDataSourceProxy(routing);
+    }
+
+    @Bean
+    public ReplicaLagMonitor replicaLagMonitor(ReplicaRoutingDataSource routing,
+                                               @Value("${ewm-stats-service.replicas.max-lag-seconds:10}")
+                                               double maxLagSeconds) {
+        return new ReplicaLagMonitor(routing, maxLagSeconds);
+    }
+}
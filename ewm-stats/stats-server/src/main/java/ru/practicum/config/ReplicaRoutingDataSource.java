@@ -0,0 +1,72 @@
+package ru.practicum.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends connections of read-only work to a healthy replica, round robin, and everything else to the
+ * primary. Replicas that are down or lag behind are skipped until {@link ReplicaLagMonitor} marks them
+ * healthy again; with no healthy replica reads fall back to the primary.
+ */
+@Slf4j
+public class ReplicaRoutingDataSource extends AbstractRoutingDataSource {
+    private final List<DataSource> replicas;
+    private final boolean[] healthy;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public ReplicaRoutingDataSource(DataSource primary, List<DataSource> replicas) {
+        this.replicas = List.copyOf(replicas);
+        this.healthy = new boolean[replicas.size()];
+        Map<Object, Object> targets = new HashMap<>();
+        for (int i = 0; i < replicas.size(); i++) {
+            targets.put(i, replicas.get(i));
+            healthy[i] = true;
+        }
+        setTargetDataSources(targets);
+        setDefaultTargetDataSource(primary);
+        setLenientFallback(false);
+    }
+
+    public List<DataSource> getReplicas() {
+        return replicas;
+    }
+
+    public synchronized void setHealthy(int replica, boolean value) {
+        if (healthy[replica] != value) {
+            log.warn("Replica {} is {}", replica, value ? "back in rotation" : "out of rotation");
+        }
+        healthy[replica] = value;
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        if (!TransactionSynchronizationManager.isCurrentTransactionReadOnly() && !ReadOnlyRouting.isActive()) {
+            return null;
+        }
+        int start = Math.floorMod(next.getAndIncrement(), replicas.size());
+        synchronized (this) {
+            for (int i = 0; i < replicas.size(); i++) {
+                int replica = (start + i) % replicas.size();
+                if (healthy[replica]) {
+                    return replica;
+                }
+            }
+        }
+        return null;
+    }
+
+    public void close() throws Exception {
+        for (DataSource replica : replicas) {
+            if (replica instanceof AutoCloseable) {
+                ((AutoCloseable) replica).close();
+            }
+        }
+    }
+}
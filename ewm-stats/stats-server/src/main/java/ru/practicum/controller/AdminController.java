@@ -0,0 +1,34 @@
+package ru.practicum.controller;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.web.bind.annotation.*;
+import ru.practicum.model.ImportResult;
+import ru.practicum.service.HitImporter;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+@RestController
+@ConditionalOnProperty(name = "ewm-stats-service.storage.engine", havingValue = "postgres", matchIfMissing = true)
+@RequestMapping("/admin")
+@RequiredArgsConstructor
+@Slf4j
+public class AdminController {
+    private static final String CSV = "text/csv";
+    private static final String NDJSON = "application/x-ndjson";
+    private final HitImporter hitImporter;
+
+    @PostMapping(value = "/hits/import", consumes = CSV)
+    public ImportResult importCsv(InputStream body, @RequestParam(defaultValue = "false") boolean header) {
+        log.info("Import of a CSV hit dump");
+        return hitImporter.importCsv(body, header);
+    }
+
+    @PostMapping(value = "/hits/import", consumes = NDJSON)
+    public ImportResult importNdjson(InputStream body) throws IOException {
+        log.info("Import of an NDJSON hit dump");
+        return hitImporter.importNdjson(body);
+    }
+}
@@ -1,20 +1,39 @@
 package ru.practicum.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import ru.practicum.HitCodec;
+import ru.practicum.LiveDtoResponse;
 import ru.practicum.StatsDtoRequest;
 import ru.practicum.StatsDtoResponse;
+import ru.practicum.TimeseriesDtoResponse;
+import ru.practicum.ViewsDtoRequest;
 import ru.practicum.exception.ValidationException;
+import ru.practicum.model.Interval;
+import ru.practicum.model.StatsQuery;
+import ru.practicum.model.StatsResult;
 import ru.practicum.service.StatsService;
 
 import javax.validation.Valid;
+import javax.validation.constraints.NotEmpty;
+import javax.validation.constraints.Positive;
+import javax.validation.constraints.PositiveOrZero;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 
 @RestController
 @RequiredArgsConstructor
@@ -22,7 +41,16 @@ import java.util.List;
 @Slf4j
 public class StatsController {
     private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final String RELATIVE_ERROR_HEADER = "X-Stats-Relative-Error";
+    private static final String NDJSON = "application/x-ndjson";
     private final StatsService statsService;
+    private final ObjectMapper objectMapper;
+
+    @Value("${ewm-stats-service.timeseries.max-buckets:10000}")
+    private int maxTimeseriesBuckets;
+
+    @Value("${ewm-stats-service.views.max-events:1000}")
+    private int maxViewEvents;
 
     @PostMapping("/hit")
     @ResponseStatus(code = HttpStatus.CREATED)
@@ -31,21 +59,151 @@ public class StatsController {
         statsService.createHit(request);
     }
 
+    @PostMapping("/hits")
+    @ResponseStatus(code = HttpStatus.CREATED)
+    public void createHits(@RequestBody @NotEmpty List<@Valid StatsDtoRequest> requests) {
+        log.info("Create Hits batch, size: {}", requests.size());
+        statsService.createHits(requests);
+    }
+
+    @PostMapping(value = "/hits", consumes = HitCodec.MEDIA_TYPE)
+    @ResponseStatus(code = HttpStatus.CREATED)
+    public void createHits(@RequestBody byte[] body) {
+        List<StatsDtoRequest> requests = HitCodec.decode(body);
+        log.info("Create binary Hits batch, size: {}", requests.size());
+        statsService.createHits(requests);
+    }
+
     @GetMapping("/stats")
     public ResponseEntity<List<StatsDtoResponse>> getStats(@RequestParam String start,
                                                            @RequestParam String end,
                                                            @RequestParam(required = false) List<String> uris,
-                                                           @RequestParam(defaultValue = "false") boolean unique
+                                                           @RequestParam(required = false) String uriPrefix,
+                                                           @RequestParam(defaultValue = "false") boolean unique,
+                                                           @RequestParam(required = false) Boolean approximate,
+                                                           @RequestParam(required = false) @Positive Integer limit,
+                                                           @RequestParam(defaultValue = "0") @PositiveOrZero int offset
     ) throws ValidationException {
         log.info("Stats request");
+        StatsQuery query = toQuery(start, end, uris, uriPrefix, unique, approximate, limit, offset);
+        StatsResult result = statsService.getStats(query);
+        return new ResponseEntity<>(result.getStats(), headers(result.getRelativeError()), HttpStatus.OK);
+    }
+
+    @GetMapping(value = "/stats/stream", produces = NDJSON)
+    public ResponseEntity<StreamingResponseBody> streamStats(@RequestParam String start,
+                                                             @RequestParam String end,
+                                                             @RequestParam(required = false) List<String> uris,
+                                                             @RequestParam(required = false) String uriPrefix,
+                                                             @RequestParam(defaultValue = "false") boolean unique,
+                                                             @RequestParam(required = false) Boolean approximate,
+                                                             @RequestParam(required = false) @Positive Integer limit,
+                                                             @RequestParam(defaultValue = "0") @PositiveOrZero int offset
+    ) throws ValidationException {
+        log.info("Stats stream request");
+        StatsQuery query = toQuery(start, end, uris, uriPrefix, unique, approximate, limit, offset);
+        StreamingResponseBody body = out -> statsService.streamStats(query, stat -> {
+            try {
+                out.write(objectMapper.writeValueAsBytes(stat));
+                out.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return new ResponseEntity<>(body, headers(statsService.getStreamRelativeError(query)), HttpStatus.OK);
+    }
+
+    @GetMapping("/stats/timeseries")
+    public List<TimeseriesDtoResponse> getTimeseries(@RequestParam String start,
+                                                     @RequestParam String end,
+                                                     @RequestParam List<String> uris,
+                                                     @RequestParam String interval,
+                                                     @RequestParam(defaultValue = "false") boolean unique
+    ) throws ValidationException {
+        log.info("Timeseries request, interval: {}", interval);
+        Interval bucket;
+        try {
+            bucket = Interval.valueOf(interval.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new ValidationException("Interval must be one of minute, hour or day");
+        }
+        StatsQuery query = toQuery(start, end, uris, null, unique, null, null, 0);
+        long buckets = bucket.getUnit().between(query.getStart(), query.getEnd()) + 1;
+        if (buckets > maxTimeseriesBuckets) {
+            throw new ValidationException("Timeseries is limited to " + maxTimeseriesBuckets + " buckets per uri");
+        }
+        return statsService.getTimeseries(query, bucket);
+    }
 
+    @GetMapping("/stats/top")
+    public List<StatsDtoResponse> getTop(@RequestParam String app,
+                                         @RequestParam String start,
+                                         @RequestParam String end,
+                                         @RequestParam(defaultValue = "10") @Positive int limit
+    ) throws ValidationException {
+        log.info("Top stats request for app: {}", app);
         LocalDateTime startDateTime = LocalDateTime.parse(start, FORMAT);
         LocalDateTime endDateTime = LocalDateTime.parse(end, FORMAT);
         if (startDateTime.isAfter(endDateTime)) {
             throw new ValidationException("Start must be before end");
         }
+        return statsService.getTop(app, startDateTime, endDateTime, limit);
+    }
+
+    @GetMapping("/stats/live")
+    public List<LiveDtoResponse> getLive(@RequestParam(required = false) String app,
+                                         @RequestParam(required = false) List<String> uris,
+                                         @RequestParam(defaultValue = "100") @Positive int limit) {
+        log.info("Live stats request");
+        return statsService.getLive(app, uris, limit);
+    }
+
+    @PostMapping("/stats/views")
+    public ResponseEntity<Map<Long, Long>> getViews(@Valid @RequestBody ViewsDtoRequest request)
+            throws ValidationException {
+        log.info("Views request, events: {}", request.getEvents().size());
+        if (request.getEvents().size() > maxViewEvents) {
+            throw new ValidationException("Views are limited to " + maxViewEvents + " events per request");
+        }
+        Map<Long, LocalDateTime> since = new HashMap<>();
+        for (ViewsDtoRequest.EventSince event : request.getEvents()) {
+            since.merge(event.getId(), event.getSince(), (left, right) -> left.isBefore(right) ? left : right);
+        }
+        return new ResponseEntity<>(statsService.getViews(request.getApp(), since),
+                headers(statsService.getViewsRelativeError(since)), HttpStatus.OK);
+    }
 
-        return new ResponseEntity<>(statsService.getStats(startDateTime, endDateTime, uris, unique), HttpStatus.OK);
+    private StatsQuery toQuery(String start,
+                               String end,
+                               List<String> uris,
+                               String uriPrefix,
+                               boolean unique,
+                               Boolean approximate,
+                               Integer limit,
+                               int offset) {
+        LocalDateTime startDateTime = LocalDateTime.parse(start, FORMAT);
+        LocalDateTime endDateTime = LocalDateTime.parse(end, FORMAT);
+        if (startDateTime.isAfter(endDateTime)) {
+            throw new ValidationException("Start must be before end");
+        }
+        if (uriPrefix != null && (uriPrefix.isEmpty() || uris != null)) {
+            throw new ValidationException("Uri prefix must not be empty or combined with uris");
+        }
+        return StatsQuery.builder()
+                .start(startDateTime)
+                .end(endDateTime)
+                .uris(uris)
+                .uriPrefix(uriPrefix)
+                .unique(unique)
+                .approximate(approximate)
+                .limit(limit)
+                .offset(offset)
+                .build();
     }
 
+    private HttpHeaders headers(Optional<Double> relativeError) {
+        HttpHeaders headers = new HttpHeaders();
+        relativeError.ifPresent(error -> headers.add(RELATIVE_ERROR_HEADER, String.valueOf(error)));
+        return headers;
+    }
 }
@@ -29,6 +29,13 @@ public class ErrorHandler {
         return new ErrorResponse(e.getClass().toString(), e.getMessage());
     }
 
+    @ExceptionHandler(OverflowException.class)
+    @ResponseStatus(code = HttpStatus.SERVICE_UNAVAILABLE)
+    public ErrorResponse handleOverflowException(final OverflowException e) {
+        log.error("Error (Service Unavailable): " + e.getMessage());
+        return new ErrorResponse(e.getClass().toString(), e.getMessage());
+    }
+
     @ExceptionHandler
     @ResponseStatus(code = HttpStatus.INTERNAL_SERVER_ERROR)
     public ErrorResponse generalError(final Throwable e) {
@@ -0,0 +1,7 @@
+package ru.practicum.exception;
+
+public class OverflowException extends RuntimeException {
+    public OverflowException(String s) {
+        super(s);
+    }
+}
@@ -4,15 +4,18 @@ import lombok.experimental.UtilityClass;
 import ru.practicum.StatsDtoRequest;
 import ru.practicum.model.App;
 import ru.practicum.model.Hit;
+import ru.practicum.model.Uri;
+
+import java.time.temporal.ChronoUnit;
 
 @UtilityClass
 public class StatsMapper {
-    public static Hit toHit(StatsDtoRequest request, App app) {
+    public static Hit toHit(StatsDtoRequest request, App app, Uri uri) {
         return Hit.builder()
                 .app(app)
-                .uri(request.getUri())
+                .uri(uri)
                 .ip(request.getIp())
-                .timestamp(request.getTimestamp())
+                .timestamp(request.getTimestamp().truncatedTo(ChronoUnit.SECONDS))
                 .build();
     }
 }
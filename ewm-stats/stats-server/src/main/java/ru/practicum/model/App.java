@@ -2,10 +2,6 @@ package ru.practicum.model;
 
 import lombok.*;
 
-import javax.persistence.*;
-
-@Entity
-@Table(name = "apps")
 @Getter
 @Setter
 @NoArgsConstructor
@@ -13,10 +9,7 @@ import javax.persistence.*;
 @Builder
 public class App {
 
-    @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long id;
 
-    @Column(name = "name", length = 128, nullable = false)
     private String name;
 }
@@ -0,0 +1,11 @@
+package ru.practicum.model;
+
+import lombok.Value;
+
+@Value
+public class AppUri {
+
+    String app;
+
+    String uri;
+}
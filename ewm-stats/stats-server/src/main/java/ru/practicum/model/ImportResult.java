@@ -0,0 +1,11 @@
+package ru.practicum.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+public class ImportResult {
+
+    private final long hits;
+}
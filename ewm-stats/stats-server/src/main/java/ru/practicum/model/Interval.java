@@ -0,0 +1,17 @@
+package ru.practicum.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.temporal.ChronoUnit;
+
+@Getter
+@AllArgsConstructor
+public enum Interval {
+    MINUTE("minute", ChronoUnit.MINUTES),
+    HOUR("hour", ChronoUnit.HOURS),
+    DAY("day", ChronoUnit.DAYS);
+
+    private final String datePart;
+    private final ChronoUnit unit;
+}
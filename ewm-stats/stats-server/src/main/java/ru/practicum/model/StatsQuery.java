@@ -0,0 +1,30 @@
+package ru.practicum.model;
+
+import lombok.Builder;
+import lombok.Getter;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Getter
+@Builder(toBuilder = true)
+public class StatsQuery {
+
+    private final LocalDateTime start;
+
+    private final LocalDateTime end;
+
+    private final String app;
+
+    private final List<String> uris;
+
+    private final String uriPrefix;
+
+    private final boolean unique;
+
+    private final Boolean approximate;
+
+    private final Integer limit;
+
+    private final int offset;
+}
@@ -0,0 +1,29 @@
+package ru.practicum.model;
+
+import lombok.AllArgsConstructor;
+import ru.practicum.StatsDtoResponse;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Stats together with the relative error of the path that answered them.
+ */
+@AllArgsConstructor
+public class StatsResult {
+
+    private final List<StatsDtoResponse> stats;
+
+    private final Double relativeError;
+
+    public List<StatsDtoResponse> getStats() {
+        return stats;
+    }
+
+    /**
+     * @return relative standard error of approximate unique counts, empty when the counts are exact
+     */
+    public Optional<Double> getRelativeError() {
+        return Optional.ofNullable(relativeError);
+    }
+}
@@ -0,0 +1,15 @@
+package ru.practicum.model;
+
+import lombok.*;
+
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class Uri {
+
+    private Long id;
+
+    private String path;
+}
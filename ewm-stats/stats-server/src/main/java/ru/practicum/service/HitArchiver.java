@@ -0,0 +1,247 @@
+package ru.practicum.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.practicum.storage.ArchiveSegment;
+import ru.practicum.storage.HitJdbcStorage;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Moves raw hits older than {@code afterDays} whole days out of Postgres into {@link ArchiveSegment}
+ * files, one per archived hour, and scans those files for stats ranges that reach into archived days.
+ * Rollups and sketches stay in Postgres, so archived files are read only for the unaligned edges of
+ * a range and for exact unique counts.
+ */
+@Component
+@ConditionalOnProperty(name = "ewm-stats-service.storage.engine", havingValue = "postgres", matchIfMissing = true)
+@Slf4j
+public class HitArchiver {
+    private static final String PREFIX = "hits-";
+    private static final String SUFFIX = ".seg";
+    private static final String PENDING = ".pending";
+    private final NavigableMap<LocalDate, List<ArchiveSegment>> segments = new ConcurrentSkipListMap<>();
+    private final HitJdbcStorage hitJdbcStorage;
+    private final StatsCache statsCache;
+    private final TransactionTemplate transaction;
+    private final boolean enabled;
+    private final Path directory;
+    private final int afterDays;
+
+    public HitArchiver(HitJdbcStorage hitJdbcStorage,
+                       StatsCache statsCache,
+                       PlatformTransactionManager transactionManager,
+                       @Value("${ewm-stats-service.archive.enabled:false}") boolean enabled,
+                       @Value("${ewm-stats-service.archive.directory:archive}") String directory,
+                       @Value("${ewm-stats-service.archive.after-days:30}") int afterDays) {
+        if (afterDays < 1) {
+            throw new IllegalArgumentException("Hits can only be archived after at least one day");
+        }
+        this.hitJdbcStorage = hitJdbcStorage;
+        this.statsCache = statsCache;
+        this.transaction = new TransactionTemplate(transactionManager);
+        this.enabled = enabled;
+        this.directory = Paths.get(directory);
+        this.afterDays = afterDays;
+    }
+
+    @PostConstruct
+    public void open() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        Files.createDirectories(directory);
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(file -> file.getFileName().toString().startsWith(PREFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        Map<String, Path> pending = new HashMap<>();
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (name.endsWith(SUFFIX + PENDING)) {
+                pending.put(name.substring(0, name.length() - PENDING.length()), file);
+            }
+        }
+        Set<String> committed = hitJdbcStorage.findArchiveSegments(pending.keySet());
+        for (Map.Entry<String, Path> entry : pending.entrySet()) {
+            if (committed.contains(entry.getKey())) {
+                Files.move(entry.getValue(), directory.resolve(entry.getKey()), StandardCopyOption.ATOMIC_MOVE);
+                log.info("Archive segment {} was committed before a restart, moved into place", entry.getKey());
+            } else {
+                Files.delete(entry.getValue());
+                log.info("Archive segment {} was rolled back before a restart, deleted", entry.getKey());
+            }
+        }
+        try (Stream<Path> list = Files.list(directory)) {
+            for (Path file : list.sorted().collect(Collectors.toList())) {
+                String name = file.getFileName().toString();
+                if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                    register(day(file), ArchiveSegment.open(file));
+                }
+            }
+        }
+        log.info("Hit archive opened in {}, archived days: {}", directory.toAbsolutePath(), segments.size());
+    }
+
+    /**
+     * @return whether a range starting at {@code from} may need archived hits
+     */
+    public boolean reaches(LocalDateTime from) {
+        return getArchivedUntil().map(from::isBefore).orElse(false);
+    }
+
+    /**
+     * @return end of the last archived day; nothing after it is archived
+     */
+    public Optional<LocalDateTime> getArchivedUntil() {
+        if (!enabled || segments.isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.of(segments.lastKey().plusDays(1).atStartOfDay());
+    }
+
+    /**
+     * Visits every archived hit within {@code [from, to)}.
+     *
+     * @param app  app to visit, all apps when null
+     * @param uris uris to visit, all uris when empty
+     */
+    public void scan(LocalDateTime from, LocalDateTime to, String app, Set<String> uris, boolean withIps,
+                     ArchiveSegment.Visitor visitor) {
+        if (!from.isBefore(to)) {
+            return;
+        }
+        long fromSecond = from.toEpochSecond(ZoneOffset.UTC);
+        long toSecond = to.toEpochSecond(ZoneOffset.UTC);
+        for (List<ArchiveSegment> day : segments.subMap(from.toLocalDate(), true,
+                to.minusSeconds(1).toLocalDate(), true).values()) {
+            for (ArchiveSegment segment : day) {
+                segment.scan(fromSecond, toSecond, app, uris, withIps, visitor);
+            }
+        }
+    }
+
+    /**
+     * Deletes archived days before {@code before}. They are no longer scanned once removed here, then
+     * their files and records are deleted; a file left behind by a crash is deleted on the next run.
+     *
+     * @return number of archived hits deleted
+     */
+    public synchronized long deleteBefore(LocalDateTime before) {
+        if (!enabled) {
+            return 0;
+        }
+        long deleted = 0;
+        for (LocalDate day : new ArrayList<>(segments.headMap(before.toLocalDate()).keySet())) {
+            for (ArchiveSegment segment : segments.remove(day)) {
+                try {
+                    Files.deleteIfExists(segment.getPath());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                deleted += segment.getRows();
+            }
+        }
+        hitJdbcStorage.deleteArchiveSegments(before.toLocalDate());
+        if (deleted > 0) {
+            log.info("Deleted {} archived hits before {}", deleted, before);
+        }
+        return deleted;
+    }
+
+    @Scheduled(cron = "${ewm-stats-service.archive.cron:0 30 3 * * *}")
+    public synchronized void archive() {
+        if (!enabled) {
+            return;
+        }
+        LocalDate until = LocalDate.now().minusDays(afterDays);
+        Optional<LocalDateTime> oldest = hitJdbcStorage.findOldest(until.atStartOfDay());
+        if (oldest.isEmpty()) {
+            return;
+        }
+        for (LocalDate day = oldest.get().toLocalDate(); day.isBefore(until); day = day.plusDays(1)) {
+            for (int hour = 0; hour < 24; hour++) {
+                archive(day, hour);
+            }
+        }
+    }
+
+    /**
+     * Deletes the hits of one hour of the day and writes them to a new segment in one transaction, so
+     * the deleted rows and the segment being built stay bounded by an hour of traffic. The segment is
+     * synced as a pending file and recorded in {@code archive_segments} before the delete commits, and
+     * moved into place only after the commit, so a hit is never counted both in Postgres and in a
+     * segment; {@link #open} settles pending files left by a crash from that record.
+     */
+    private void archive(LocalDate day, int hour) {
+        LocalDateTime from = day.atTime(hour, 0);
+        String name = String.format("%s%s-%02d-%d%s", PREFIX, day.format(DateTimeFormatter.BASIC_ISO_DATE),
+                hour, System.currentTimeMillis(), SUFFIX);
+        Path path = directory.resolve(name);
+        Path pending = directory.resolve(name + PENDING);
+        ArchiveSegment.Writer writer = new ArchiveSegment.Writer(day);
+        try {
+            transaction.executeWithoutResult(status -> {
+                hitJdbcStorage.moveOut(from, from.plusHours(1), writer::add);
+                if (writer.getRows() > 0) {
+                    writer.write(pending);
+                    hitJdbcStorage.addArchiveSegment(name, day, writer.getRows());
+                }
+            });
+        } catch (RuntimeException e) {
+            try {
+                Files.deleteIfExists(pending);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        if (writer.getRows() == 0) {
+            return;
+        }
+        try {
+            Files.move(pending, path, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        register(day, ArchiveSegment.open(path));
+        statsCache.clear();
+        log.info("Archived {} hits of {} to {}", writer.getRows(), from, path.getFileName());
+    }
+
+    private void register(LocalDate day, ArchiveSegment segment) {
+        segments.computeIfAbsent(day, key -> new CopyOnWriteArrayList<>()).add(segment);
+    }
+
+    private static LocalDate day(Path segment) {
+        String name = segment.getFileName().toString();
+        try {
+            return LocalDate.parse(name.substring(PREFIX.length(), PREFIX.length() + 8),
+                    DateTimeFormatter.BASIC_ISO_DATE);
+        } catch (RuntimeException e) {
+            throw new UncheckedIOException(new IOException("Unexpected archive segment name: " + name, e));
+        }
+    }
+}
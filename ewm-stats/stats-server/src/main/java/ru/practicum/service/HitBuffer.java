@@ -0,0 +1,170 @@
+package ru.practicum.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.practicum.StatsDtoRequest;
+import ru.practicum.exception.OverflowException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind buffer for incoming hits. Hits are acknowledged as soon as they are queued
+ * and written by a single background thread in batches of {@code batchSize} rows or every
+ * {@code flushIntervalMs} milliseconds, whichever comes first.
+ */
+@Component
+@Slf4j
+public class HitBuffer {
+    private final HitSpool hitSpool;
+    private final boolean enabled;
+    private final int batchSize;
+    private final long flushIntervalMs;
+    private final OverflowPolicy overflowPolicy;
+    private final BlockingQueue<StatsDtoRequest> queue;
+    private final Timer flushTimer;
+    private final Counter droppedCounter;
+    private final Counter failedCounter;
+    private volatile boolean running;
+    private Thread writer;
+
+    public HitBuffer(HitSpool hitSpool,
+                     MeterRegistry meterRegistry,
+                     @Value("${ewm-stats-service.write-behind.enabled:false}") boolean enabled,
+                     @Value("${ewm-stats-service.write-behind.capacity:100000}") int capacity,
+                     @Value("${ewm-stats-service.write-behind.batch-size:1000}") int batchSize,
+                     @Value("${ewm-stats-service.write-behind.flush-interval-ms:200}") long flushIntervalMs,
+                     @Value("${ewm-stats-service.write-behind.overflow-policy:CALLER_RUNS}") OverflowPolicy overflowPolicy) {
+        this.hitSpool = hitSpool;
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+        this.flushIntervalMs = flushIntervalMs;
+        this.overflowPolicy = overflowPolicy;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        Gauge.builder("stats.hits.buffer.depth", queue, Collection::size)
+                .description("Hits waiting to be written")
+                .register(meterRegistry);
+        this.flushTimer = Timer.builder("stats.hits.buffer.flush")
+                .description("Time spent writing one batch of buffered hits")
+                .register(meterRegistry);
+        this.droppedCounter = Counter.builder("stats.hits.buffer.dropped")
+                .description("Hits dropped because the buffer was full")
+                .register(meterRegistry);
+        this.failedCounter = Counter.builder("stats.hits.buffer.failed")
+                .description("Hits lost because a batch write failed")
+                .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return false if the hit was dropped because the buffer is full
+     */
+    public boolean offer(StatsDtoRequest request) {
+        if (running && queue.offer(request)) {
+            return true;
+        }
+        switch (overflowPolicy) {
+            case DROP:
+                droppedCounter.increment();
+                log.warn("Hit buffer is full, hit for uri {} dropped", request.getUri());
+                return false;
+            case CALLER_RUNS:
+                hitSpool.write(List.of(request));
+                return true;
+            default:
+                throw new OverflowException("Hit buffer is full");
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        running = true;
+        writer = new Thread(this::run, "hit-buffer-writer");
+        writer.setDaemon(true);
+        writer.start();
+        log.info("Hit write-behind buffer started, capacity: {}", queue.remainingCapacity());
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (!enabled) {
+            return;
+        }
+        running = false;
+        writer.join(TimeUnit.SECONDS.toMillis(30));
+        if (writer.isAlive()) {
+            writer.interrupt();
+        }
+        List<StatsDtoRequest> batch = new ArrayList<>(batchSize);
+        while (queue.drainTo(batch, batchSize) > 0) {
+            flush(batch);
+        }
+        log.info("Hit write-behind buffer stopped");
+    }
+
+    private void run() {
+        List<StatsDtoRequest> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                collect(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            flush(batch);
+        }
+        flush(batch);
+    }
+
+    private void collect(List<StatsDtoRequest> batch) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+        while (batch.size() < batchSize) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            StatsDtoRequest request = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (request == null) {
+                break;
+            }
+            batch.add(request);
+            queue.drainTo(batch, batchSize - batch.size());
+        }
+    }
+
+    private void flush(List<StatsDtoRequest> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            flushTimer.record(() -> hitSpool.write(batch));
+        } catch (RuntimeException e) {
+            failedCounter.increment(batch.size());
+            log.error("Failed to write {} buffered hits: {}", batch.size(), e.getMessage());
+        }
+        batch.clear();
+    }
+
+    public enum OverflowPolicy {
+        REJECT,
+        DROP,
+        CALLER_RUNS
+    }
+}
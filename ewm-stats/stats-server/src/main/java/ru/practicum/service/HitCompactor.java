@@ -0,0 +1,134 @@
+package ru.practicum.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.practicum.storage.HitJdbcStorage;
+import ru.practicum.storage.RangePlan;
+import ru.practicum.storage.RetentionPolicy;
+import ru.practicum.storage.RollupStorage;
+import ru.practicum.storage.SketchStorage;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Optional;
+import java.util.function.IntSupplier;
+
+/**
+ * Applies the {@link RetentionPolicy}: deletes raw hits, archived days and minute rollups past their
+ * retention, compacts hour sketches into day sketches and then deletes hour rollups. Coarser rollups
+ * are kept up to date at ingest, so a tier only has to be deleted once the next one covers it. Deletes
+ * run in chunks of {@code chunkSize} rows, each in its own transaction, and every step can be repeated.
+ * <p>
+ * Day sketches are built by a job of their own as soon as a day is closed, whatever the retention.
+ */
+@Component
+@ConditionalOnProperty(name = "ewm-stats-service.storage.engine", havingValue = "postgres", matchIfMissing = true)
+@Slf4j
+public class HitCompactor {
+    private final HitJdbcStorage hitJdbcStorage;
+    private final RollupStorage rollupStorage;
+    private final SketchStorage sketchStorage;
+    private final HitArchiver hitArchiver;
+    private final RetentionPolicy retentionPolicy;
+    private final StatsCache statsCache;
+    private final TransactionTemplate transaction;
+    private final int chunkSize;
+
+    public HitCompactor(HitJdbcStorage hitJdbcStorage,
+                        RollupStorage rollupStorage,
+                        SketchStorage sketchStorage,
+                        HitArchiver hitArchiver,
+                        RetentionPolicy retentionPolicy,
+                        StatsCache statsCache,
+                        PlatformTransactionManager transactionManager,
+                        @Value("${ewm-stats-service.retention.chunk-size:10000}") int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Retention chunk size must be positive");
+        }
+        this.hitJdbcStorage = hitJdbcStorage;
+        this.rollupStorage = rollupStorage;
+        this.sketchStorage = sketchStorage;
+        this.hitArchiver = hitArchiver;
+        this.retentionPolicy = retentionPolicy;
+        this.statsCache = statsCache;
+        this.transaction = new TransactionTemplate(transactionManager);
+        this.chunkSize = chunkSize;
+    }
+
+    @Scheduled(cron = "${ewm-stats-service.retention.cron:0 0 4 * * *}")
+    public synchronized void compact() {
+        long deleted = 0;
+        Optional<LocalDateTime> rawCutoff = retentionPolicy.getRawCutoff();
+        if (rawCutoff.isPresent()) {
+            deleted += deleteChunked("raw hits", () -> hitJdbcStorage.deleteBefore(rawCutoff.get(), chunkSize));
+            deleted += hitArchiver.deleteBefore(rawCutoff.get());
+        }
+        Optional<LocalDateTime> minuteCutoff = retentionPolicy.getMinuteCutoff();
+        if (minuteCutoff.isPresent()) {
+            deleted += deleteChunked("minute rollups", () -> rollupStorage.deleteBefore(RangePlan.Granularity.MINUTE,
+                    minuteCutoff.get(), chunkSize));
+        }
+        Optional<LocalDateTime> hourCutoff = retentionPolicy.getHourCutoff();
+        if (hourCutoff.isPresent()) {
+            deleted += compactSketches(hourCutoff.get());
+            deleted += deleteChunked("hour rollups", () -> rollupStorage.deleteBefore(RangePlan.Granularity.HOUR,
+                    hourCutoff.get(), chunkSize));
+        }
+        if (deleted > 0) {
+            statsCache.clear();
+        }
+    }
+
+    /**
+     * Builds the day sketches of every closed day since the last built one. The last built day is
+     * built again, so hour sketches flushed while it was being built are not missed.
+     */
+    @Scheduled(cron = "${ewm-stats-service.hll.day-cron:0 15 0 * * *}")
+    public synchronized void buildDaySketches() {
+        sketchStorage.flush();
+        LocalDate today = LocalDate.now();
+        Optional<LocalDate> first = sketchStorage.findLastDay()
+                .or(() -> sketchStorage.findOldestHour(today.atStartOfDay()));
+        if (first.isEmpty()) {
+            return;
+        }
+        long merged = 0;
+        for (LocalDate day = first.get(); day.isBefore(today); day = day.plusDays(1)) {
+            LocalDate builtDay = day;
+            merged += transaction.execute(status -> sketchStorage.buildDay(builtDay));
+        }
+        log.info("Built day sketches from {} until {} out of {} hour sketches", first.get(), today, merged);
+    }
+
+    private long compactSketches(LocalDateTime cutoff) {
+        Optional<LocalDate> oldest = sketchStorage.findOldestHour(cutoff);
+        if (oldest.isEmpty()) {
+            return 0;
+        }
+        long compacted = 0;
+        for (LocalDate day = oldest.get(); day.isBefore(cutoff.toLocalDate()); day = day.plusDays(1)) {
+            LocalDate compactedDay = day;
+            compacted += transaction.execute(status -> sketchStorage.compactDay(compactedDay));
+        }
+        log.info("Compacted {} hour sketches before {} into day sketches", compacted, cutoff);
+        return compacted;
+    }
+
+    private long deleteChunked(String tier, IntSupplier chunk) {
+        long deleted = 0;
+        int count;
+        do {
+            count = transaction.execute(status -> chunk.getAsInt());
+            deleted += count;
+        } while (count == chunkSize);
+        if (deleted > 0) {
+            log.info("Deleted {} {} past retention", deleted, tier);
+        }
+        return deleted;
+    }
+}
@@ -0,0 +1,50 @@
+package ru.practicum.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.practicum.StatsDtoRequest;
+import ru.practicum.sketch.Hashing;
+import ru.practicum.sketch.SlidingBloomFilter;
+
+/**
+ * Drops repeated hits of one app, uri and ip that arrive within {@code windowMs} of each other.
+ * Unique counts do not change; hit counts lose the repeats, and a Bloom filter false positive
+ * drops a first hit now and then, at a rate set by {@code bits} and {@code hashes}. Hits of a batch
+ * are checked one by one, by arrival time like single hits.
+ */
+@Component
+public class HitDeduplicator {
+    private final boolean enabled;
+    private final SlidingBloomFilter filter;
+    private final Counter droppedCounter;
+
+    public HitDeduplicator(MeterRegistry meterRegistry,
+                           @Value("${ewm-stats-service.dedup.enabled:false}") boolean enabled,
+                           @Value("${ewm-stats-service.dedup.window-ms:10000}") long windowMs,
+                           @Value("${ewm-stats-service.dedup.slices:4}") int slices,
+                           @Value("${ewm-stats-service.dedup.bits:4194304}") int bits,
+                           @Value("${ewm-stats-service.dedup.hashes:4}") int hashes) {
+        this.enabled = enabled;
+        this.filter = enabled ? new SlidingBloomFilter(windowMs, slices, bits, hashes) : null;
+        this.droppedCounter = Counter.builder("stats.hits.deduplicated")
+                .description("Hits dropped as repeats within the dedup window")
+                .register(meterRegistry);
+    }
+
+    /**
+     * @return whether the hit repeats one seen within the window and should be dropped
+     */
+    public boolean isDuplicate(StatsDtoRequest request) {
+        if (!enabled) {
+            return false;
+        }
+        long hash = Hashing.hash64(request.getApp() + '\n' + request.getUri()) ^ Hashing.hashIp(request.getIp());
+        if (filter.put(hash, System.currentTimeMillis())) {
+            droppedCounter.increment();
+            return true;
+        }
+        return false;
+    }
+}
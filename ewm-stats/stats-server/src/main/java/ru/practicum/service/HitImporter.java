@@ -0,0 +1,89 @@
+package ru.practicum.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.RuntimeJsonMappingException;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.practicum.StatsDtoRequest;
+import ru.practicum.model.ImportResult;
+import ru.practicum.storage.AppDictionary;
+import ru.practicum.storage.HitImportStorage;
+import ru.practicum.storage.RollupStorage;
+import ru.practicum.storage.SketchStorage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+/**
+ * Backfills hit dumps: the dump is copied into a staging table, then hits, rollups and sketches are
+ * built from it in one transaction, and finally hit listeners are told about the new hits.
+ */
+@Component
+@ConditionalOnProperty(name = "ewm-stats-service.storage.engine", havingValue = "postgres", matchIfMissing = true)
+@RequiredArgsConstructor
+@Slf4j
+public class HitImporter {
+    private final HitImportStorage hitImportStorage;
+    private final AppDictionary appDictionary;
+    private final RollupStorage rollupStorage;
+    private final SketchStorage sketchStorage;
+    private final List<HitListener> listeners;
+    private final PlatformTransactionManager transactionManager;
+    private final ObjectMapper objectMapper;
+
+    @Value("${ewm-stats-service.import.batch-size:10000}")
+    private int batchSize;
+
+    public ImportResult importCsv(InputStream csv, boolean header) {
+        return importHits(table -> hitImportStorage.copyCsv(table, csv, header));
+    }
+
+    public ImportResult importNdjson(InputStream ndjson) throws IOException {
+        Iterator<StatsDtoRequest> requests = objectMapper.readerFor(StatsDtoRequest.class).readValues(ndjson);
+        return importHits(table -> {
+            try {
+                return hitImportStorage.copyRequests(table, requests);
+            } catch (RuntimeJsonMappingException e) {
+                throw new IllegalArgumentException("Hit dump rejected: " + e.getMessage());
+            }
+        });
+    }
+
+    private ImportResult importHits(ToLongFunction<String> copy) {
+        String table = hitImportStorage.createStaging();
+        try {
+            long copied;
+            try {
+                copied = copy.applyAsLong(table);
+            } catch (DataAccessException e) {
+                throw new IllegalArgumentException("Hit dump rejected: " + e.getMostSpecificCause().getMessage());
+            }
+            log.info("Hit dump of {} rows copied into {}", copied, table);
+            hitImportStorage.findApps(table).forEach(appDictionary::getId);
+            TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+            Integer imported = transaction.execute(status -> {
+                hitImportStorage.createUris(table);
+                int inserted = hitImportStorage.moveToHits(table);
+                rollupStorage.addStaged(table);
+                hitImportStorage.scan(table, batchSize, sketchStorage::add);
+                return inserted;
+            });
+            transaction.setReadOnly(true);
+            transaction.executeWithoutResult(status -> hitImportStorage.scan(table, batchSize,
+                    hits -> listeners.forEach(listener -> listener.onHits(hits))));
+            log.info("Hit dump imported, hits: {}", imported);
+            return new ImportResult(imported == null ? 0 : imported);
+        } finally {
+            hitImportStorage.dropStaging(table);
+        }
+    }
+}
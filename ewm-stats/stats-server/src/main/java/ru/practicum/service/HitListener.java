@@ -0,0 +1,13 @@
+package ru.practicum.service;
+
+import ru.practicum.model.Hit;
+
+import java.util.List;
+
+/**
+ * In-memory consumer of ingested hits, notified after the batch has been committed.
+ */
+public interface HitListener {
+
+    void onHits(List<Hit> hits);
+}
@@ -0,0 +1,134 @@
+package ru.practicum.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
+/**
+ * Keeps daily partitions of {@code hits} created ahead of time and, when a retention period is
+ * configured, detaches or drops partitions that fall completely out of it.
+ * <p>
+ * Hits of a day without a partition land in {@code hits_default}, and Postgres refuses to create the
+ * partition while they are there. In that case the default partition is detached, the partition is
+ * created, the day's hits are moved into it and the default partition is attached again, all in one
+ * transaction that holds {@code hits} locked while it runs.
+ */
+@Component
+@ConditionalOnProperty(name = "ewm-stats-service.storage.engine", havingValue = "postgres", matchIfMissing = true)
+@RequiredArgsConstructor
+@Slf4j
+public class HitPartitionManager {
+    private static final String PARTITION_PREFIX = "hits_p";
+    private static final DateTimeFormatter PARTITION_SUFFIX = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final String SELECT_PARTITIONS = "select c.relname from pg_inherits as i " +
+            "join pg_class as c on c.oid = i.inhrelid " +
+            "join pg_class as p on p.oid = i.inhparent " +
+            "where p.relname = 'hits' and c.relname like 'hits\\_p%' " +
+            "order by c.relname";
+    private final JdbcTemplate jdbcTemplate;
+    private final PlatformTransactionManager transactionManager;
+
+    @Value("${ewm-stats-service.partitions.days-ahead:7}")
+    private int daysAhead;
+
+    @Value("${ewm-stats-service.partitions.retention-days:0}")
+    private int retentionDays;
+
+    @Value("${ewm-stats-service.partitions.drop-expired:true}")
+    private boolean dropExpired;
+
+    @PostConstruct
+    @Scheduled(cron = "${ewm-stats-service.partitions.cron:0 0 * * * *}")
+    public void maintain() {
+        LocalDate today = LocalDate.now();
+        createPartitions(today, today.plusDays(daysAhead));
+        if (retentionDays > 0) {
+            removeExpired(today.minusDays(retentionDays));
+        }
+    }
+
+    private void createPartitions(LocalDate from, LocalDate to) {
+        for (LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+            String partition = PARTITION_PREFIX + day.format(PARTITION_SUFFIX);
+            try {
+                if (hasDefaultRows(day)) {
+                    createFromDefault(partition, day);
+                } else {
+                    jdbcTemplate.execute(createPartition(partition, day));
+                }
+            } catch (DataAccessException e) {
+                log.warn("Partition {} was not created: {}", partition, e.getMessage());
+            }
+        }
+    }
+
+    private boolean hasDefaultRows(LocalDate day) {
+        return Boolean.TRUE.equals(jdbcTemplate.queryForObject("select exists (select 1 from hits_default " +
+                        "where timestamp >= ? and timestamp < ?)", Boolean.class,
+                Timestamp.valueOf(day.atStartOfDay()), Timestamp.valueOf(day.plusDays(1).atStartOfDay())));
+    }
+
+    private void createFromDefault(String partition, LocalDate day) {
+        Timestamp from = Timestamp.valueOf(day.atStartOfDay());
+        Timestamp to = Timestamp.valueOf(day.plusDays(1).atStartOfDay());
+        Integer moved = new TransactionTemplate(transactionManager).execute(status -> {
+            jdbcTemplate.execute("lock table hits in access exclusive mode");
+            jdbcTemplate.execute("alter table hits detach partition hits_default");
+            jdbcTemplate.execute(createPartition(partition, day));
+            int count = jdbcTemplate.update("insert into " + partition + " select * from hits_default " +
+                    "where timestamp >= ? and timestamp < ?", from, to);
+            jdbcTemplate.update("delete from hits_default where timestamp >= ? and timestamp < ?", from, to);
+            jdbcTemplate.execute("alter table hits attach partition hits_default default");
+            return count;
+        });
+        log.info("Partition {} created with {} hits moved from the default partition", partition, moved);
+    }
+
+    private static String createPartition(String partition, LocalDate day) {
+        return "create table if not exists " + partition + " partition of hits " +
+                "for values from ('" + day + "') to ('" + day.plusDays(1) + "')";
+    }
+
+    private void removeExpired(LocalDate cutoff) {
+        List<String> partitions = jdbcTemplate.queryForList(SELECT_PARTITIONS, String.class);
+        for (String partition : partitions) {
+            LocalDate day;
+            try {
+                day = LocalDate.parse(partition.substring(PARTITION_PREFIX.length()), PARTITION_SUFFIX);
+            } catch (DateTimeParseException e) {
+                continue;
+            }
+            if (!day.isBefore(cutoff)) {
+                continue;
+            }
+            try {
+                jdbcTemplate.execute("alter table hits detach partition " + partition);
+                if (dropExpired) {
+                    jdbcTemplate.execute("drop table " + partition);
+                }
+                log.info("Expired partition {} {}", partition, dropExpired ? "dropped" : "detached");
+            } catch (DataAccessException e) {
+                log.warn("Expired partition {} was not removed: {}", partition, e.getMessage());
+            }
+        }
+        int deleted = jdbcTemplate.update("delete from hits_default where timestamp < ?",
+                Timestamp.valueOf(cutoff.atStartOfDay()));
+        if (deleted > 0) {
+            log.info("Deleted {} expired hits from the default partition", deleted);
+        }
+    }
+}
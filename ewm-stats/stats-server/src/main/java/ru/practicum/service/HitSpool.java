@@ -0,0 +1,389 @@
+package ru.practicum.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.CannotCreateTransactionException;
+import org.springframework.transaction.TransactionTimedOutException;
+import ru.practicum.HitCodec;
+import ru.practicum.StatsDtoRequest;
+import ru.practicum.storage.engine.StorageEngine;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead spool for hits that cannot be written because the database is unavailable.
+ * <p>
+ * Hits are appended to memory-mapped segment files of {@code segmentSize} bytes. A segment starts
+ * with the offset of its first record not yet written to the database, followed by records of
+ * length, CRC32 and a {@link HitCodec} record; a zero length ends the segment. Full segments are
+ * rotated, and closed segments are replayed on startup and every {@code drainIntervalMs}, then
+ * deleted. While anything is spooled new hits are spooled as well, so a recovering database is
+ * not hit from two sides at once. Once at most one segment is left, it is replayed with appends
+ * blocked, and new hits go straight to the database again. A write that times out counts as the database being unavailable.
+ * <p>
+ * A replayed batch the database rejects for good is moved to a dead-letter file of the same format,
+ * named after the segment and the offset of the batch and ending in {@code .dead}, and is never
+ * replayed again. So are the bytes from a record that fails its length or checksum check to the last
+ * non-zero byte of the segment, as valid records may follow it.
+ */
+@Component
+@Slf4j
+public class HitSpool {
+    private static final String PREFIX = "hits-";
+    private static final String SUFFIX = ".spool";
+    private static final String DEAD_SUFFIX = ".dead";
+    private static final int HEADER_SIZE = Long.BYTES;
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+    private final StorageEngine storageEngine;
+    private final boolean enabled;
+    private final Path directory;
+    private final int segmentSize;
+    private final int batchSize;
+    private final Object drainLock = new Object();
+    private final Counter replayedCounter;
+    private final Counter deadLetteredCounter;
+    private volatile boolean backlogged;
+    private Segment current;
+    private long nextSequence;
+
+    public HitSpool(StorageEngine storageEngine,
+                    MeterRegistry meterRegistry,
+                    @Value("${ewm-stats-service.spool.enabled:false}") boolean enabled,
+                    @Value("${ewm-stats-service.spool.directory:spool}") String directory,
+                    @Value("${ewm-stats-service.spool.segment-size:8388608}") int segmentSize,
+                    @Value("${ewm-stats-service.spool.batch-size:1000}") int batchSize) {
+        this.storageEngine = storageEngine;
+        this.enabled = enabled;
+        this.directory = Paths.get(directory);
+        this.segmentSize = segmentSize;
+        this.batchSize = batchSize;
+        this.replayedCounter = Counter.builder("stats.hits.spool.replayed")
+                .description("Spooled hits written to the database")
+                .register(meterRegistry);
+        this.deadLetteredCounter = Counter.builder("stats.hits.spool.dead-lettered")
+                .description("Spooled hits the database rejected, moved to dead-letter files")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void open() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        Files.createDirectories(directory);
+        List<Path> segments = listSegments();
+        nextSequence = segments.isEmpty() ? 0 : sequence(segments.get(segments.size() - 1)) + 1;
+        backlogged = !segments.isEmpty();
+        log.info("Hit spool opened in {}, segments to replay: {}", directory.toAbsolutePath(), segments.size());
+    }
+
+    /**
+     * Writes hits to the database, or spools them if the database is unavailable or the spool is
+     * still being drained.
+     */
+    public void write(List<StatsDtoRequest> requests) {
+        if (!enabled) {
+            storageEngine.ingest(requests);
+            return;
+        }
+        if (!backlogged) {
+            try {
+                storageEngine.ingest(requests);
+                return;
+            } catch (DataAccessResourceFailureException | TransientDataAccessException |
+                     RecoverableDataAccessException | CannotCreateTransactionException |
+                     TransactionTimedOutException e) {
+                log.warn("Database unavailable, spooling {} hits: {}", requests.size(), e.getMessage());
+            }
+        }
+        append(requests);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    @Scheduled(fixedDelayString = "${ewm-stats-service.spool.drain-interval-ms:5000}")
+    public void drain() {
+        if (!enabled || !backlogged) {
+            return;
+        }
+        synchronized (drainLock) {
+            while (true) {
+                List<Path> segments;
+                synchronized (this) {
+                    rotate();
+                    segments = listSegments();
+                }
+                if (segments.size() <= 1) {
+                    break;
+                }
+                for (Path segment : segments) {
+                    if (!replay(segment)) {
+                        return;
+                    }
+                }
+            }
+            synchronized (this) {
+                rotate();
+                for (Path segment : listSegments()) {
+                    if (!replay(segment)) {
+                        return;
+                    }
+                }
+                backlogged = false;
+            }
+        }
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+    }
+
+    private synchronized void append(List<StatsDtoRequest> requests) {
+        backlogged = true;
+        for (StatsDtoRequest request : requests) {
+            byte[] record = HitCodec.encodeRecord(request);
+            if (current == null || !current.append(record)) {
+                rotate();
+                current = Segment.create(directory.resolve(String.format("%s%020d%s", PREFIX, nextSequence++,
+                        SUFFIX)), segmentSize);
+                if (!current.append(record)) {
+                    throw new IllegalStateException("Hit record of " + record.length + " bytes exceeds spool segment");
+                }
+            }
+        }
+        current.force();
+    }
+
+    private void rotate() {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+    }
+
+    /**
+     * @return false if the database is still unavailable
+     */
+    private boolean replay(Path path) {
+        Segment segment = Segment.open(path);
+        try {
+            ByteBuffer buffer = segment.buffer;
+            int position = (int) buffer.getLong(0);
+            List<StatsDtoRequest> batch = new ArrayList<>(batchSize);
+            while (true) {
+                int next = read(buffer, position, batch);
+                if (batch.isEmpty()) {
+                    int end = end(buffer, next);
+                    if (end > next) {
+                        Path deadLetter = deadLetter(path, buffer, next, end);
+                        log.error("Spool record at {} of {} is corrupted, rest of the segment moved to {}", next,
+                                path.getFileName(), deadLetter.getFileName());
+                    }
+                    break;
+                }
+                try {
+                    storageEngine.ingest(batch);
+                    replayedCounter.increment(batch.size());
+                    log.info("Replayed {} spooled hits from {}", batch.size(), path.getFileName());
+                } catch (DataAccessResourceFailureException | TransientDataAccessException |
+                         RecoverableDataAccessException | CannotCreateTransactionException |
+                         TransactionTimedOutException e) {
+                    log.warn("Database still unavailable, spool replay postponed: {}", e.getMessage());
+                    return false;
+                } catch (DataAccessException e) {
+                    Path deadLetter = deadLetter(path, buffer, position, next);
+                    deadLetteredCounter.increment(batch.size());
+                    log.error("Failed to replay {} spooled hits from {}, moved to {}: {}", batch.size(),
+                            path.getFileName(), deadLetter.getFileName(), e.getMessage());
+                }
+                buffer.putLong(0, next);
+                segment.force();
+                position = next;
+                batch.clear();
+            }
+        } finally {
+            segment.close();
+        }
+        try {
+            Files.delete(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return true;
+    }
+
+    /**
+     * Copies the records within {@code [from, to)} of a segment to a dead-letter file and syncs it.
+     * The file is named after the batch, so a batch moved again after a crash replaces its file.
+     */
+    private Path deadLetter(Path path, ByteBuffer buffer, int from, int to) {
+        String name = path.getFileName().toString();
+        Path deadLetter = directory.resolve(String.format("%s-%d%s",
+                name.substring(0, name.length() - SUFFIX.length()), from, DEAD_SUFFIX));
+        try {
+            Files.deleteIfExists(deadLetter);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Segment segment = Segment.create(deadLetter, HEADER_SIZE + to - from + Integer.BYTES);
+        try {
+            ByteBuffer records = buffer.duplicate();
+            records.position(from).limit(to);
+            ByteBuffer target = segment.buffer.duplicate();
+            target.position(HEADER_SIZE);
+            target.put(records);
+        } finally {
+            segment.close();
+        }
+        return deadLetter;
+    }
+
+    /**
+     * Reads up to a batch of records, stopping at the end of the segment or at the first record whose
+     * length or checksum does not match.
+     *
+     * @return position after the last record read
+     */
+    private int read(ByteBuffer buffer, int position, List<StatsDtoRequest> batch) {
+        CRC32 crc = new CRC32();
+        while (batch.size() < batchSize && position + RECORD_HEADER_SIZE <= buffer.limit()) {
+            int length = buffer.getInt(position);
+            int start = position + RECORD_HEADER_SIZE;
+            if (length <= 0 || start + length > buffer.limit()) {
+                break;
+            }
+            ByteBuffer record = buffer.duplicate();
+            record.position(start).limit(start + length);
+            crc.reset();
+            crc.update(record.duplicate());
+            if ((int) crc.getValue() != buffer.getInt(position + Integer.BYTES)) {
+                break;
+            }
+            batch.add(HitCodec.decodeRecord(record));
+            position = start + length;
+        }
+        return position;
+    }
+
+    /**
+     * @return position after the last non-zero byte of the segment, at least {@code from}
+     */
+    private static int end(ByteBuffer buffer, int from) {
+        int end = buffer.limit();
+        while (end > from && buffer.get(end - 1) == 0) {
+            end--;
+        }
+        return end;
+    }
+
+    private List<Path> listSegments() {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().startsWith(PREFIX) &&
+                            file.getFileName().toString().endsWith(SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long sequence(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    private static class Segment {
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int position;
+
+        private Segment(FileChannel channel, MappedByteBuffer buffer) {
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        static Segment create(Path path, int size) {
+            try {
+                FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+                Segment segment = new Segment(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+                segment.buffer.putLong(0, HEADER_SIZE);
+                segment.position = HEADER_SIZE;
+                return segment;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        static Segment open(Path path) {
+            try {
+                FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                return new Segment(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Writes the record body and checksum before its length, so a torn write reads as the end.
+         *
+         * @return false if the record does not fit
+         */
+        boolean append(byte[] record) {
+            int start = position + RECORD_HEADER_SIZE;
+            if (start + record.length > buffer.capacity()) {
+                return false;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            ByteBuffer target = buffer.duplicate();
+            target.position(start);
+            target.put(record);
+            buffer.putInt(position + Integer.BYTES, (int) crc.getValue());
+            buffer.putInt(position, record.length);
+            position = start + record.length;
+            return true;
+        }
+
+        void force() {
+            buffer.force();
+        }
+
+        void close() {
+            buffer.force();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
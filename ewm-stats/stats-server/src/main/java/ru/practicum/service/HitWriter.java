@@ -0,0 +1,52 @@
+package ru.practicum.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import ru.practicum.StatsDtoRequest;
+import ru.practicum.mapper.StatsMapper;
+import ru.practicum.model.App;
+import ru.practicum.model.Hit;
+import ru.practicum.model.Uri;
+import ru.practicum.storage.HitJdbcStorage;
+import ru.practicum.storage.RollupStorage;
+import ru.practicum.storage.SketchStorage;
+
+import java.util.*;
+
+@Component
+@ConditionalOnProperty(name = "ewm-stats-service.storage.engine", havingValue = "postgres", matchIfMissing = true)
+@RequiredArgsConstructor
+@Slf4j
+@Transactional(timeoutString = "${ewm-stats-service.hits.write-timeout-seconds:5}")
+public class HitWriter {
+    private final HitJdbcStorage hitJdbcStorage;
+    private final RollupStorage rollupStorage;
+    private final SketchStorage sketchStorage;
+    private final List<HitListener> listeners;
+
+    /**
+     * @param apps apps of the hits by name, resolved before the write transaction opens
+     * @param uris uris of the hits by path, interned before the write transaction opens
+     */
+    public void write(List<StatsDtoRequest> requests, Map<String, App> apps, Map<String, Uri> uris) {
+        List<Hit> hits = new ArrayList<>(requests.size());
+        for (StatsDtoRequest request : requests) {
+            hits.add(StatsMapper.toHit(request, apps.get(request.getApp()), uris.get(request.getUri())));
+        }
+        hitJdbcStorage.saveAll(hits);
+        rollupStorage.add(hits);
+        sketchStorage.add(hits);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                listeners.forEach(listener -> listener.onHits(hits));
+            }
+        });
+        log.info("New Hits saved. Count is: {}", hits.size());
+    }
+}
@@ -0,0 +1,221 @@
+package ru.practicum.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import ru.practicum.IpAddresses;
+import ru.practicum.model.AppUri;
+import ru.practicum.model.Hit;
+import ru.practicum.sketch.Hashing;
+import ru.practicum.storage.HitJdbcStorage;
+
+import javax.annotation.PostConstruct;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the hits of the last {@code hours} whole hours in memory, as sorted primitive arrays of
+ * timestamps and ip keys per app and uri, so that recent stats are counted without Postgres.
+ * The window is loaded from the database on startup and then fed only with hits written by this
+ * instance, so it must stay disabled when several instances share one database.
+ */
+@Component
+@ConditionalOnProperty(name = "ewm-stats-service.storage.engine", havingValue = "postgres", matchIfMissing = true)
+@Slf4j
+public class HotWindow implements HitListener {
+    private final Map<Long, Map<Long, Series>> series = new ConcurrentHashMap<>();
+    private final HitJdbcStorage hitJdbcStorage;
+    private final boolean enabled;
+    private final int hours;
+
+    public HotWindow(HitJdbcStorage hitJdbcStorage,
+                     @Value("${ewm-stats-service.hot-window.enabled:false}") boolean enabled,
+                     @Value("${ewm-stats-service.hot-window.hours:24}") int hours) {
+        this.hitJdbcStorage = hitJdbcStorage;
+        this.enabled = enabled;
+        this.hours = hours;
+    }
+
+    @PostConstruct
+    public void load() {
+        if (!enabled) {
+            return;
+        }
+        AtomicInteger loaded = new AtomicInteger();
+        hitJdbcStorage.scan(getCoveredFrom(), hit -> {
+            add(hit);
+            loaded.incrementAndGet();
+        });
+        log.info("Hot window loaded with {} hits since {}", loaded.get(), getCoveredFrom());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public LocalDateTime getCoveredFrom() {
+        return LocalDateTime.now().truncatedTo(ChronoUnit.HOURS).minusHours(hours);
+    }
+
+    public boolean covers(LocalDateTime from) {
+        return enabled && !from.isBefore(getCoveredFrom());
+    }
+
+    @Override
+    public void onHits(List<Hit> hits) {
+        if (enabled) {
+            hits.forEach(this::add);
+        }
+    }
+
+    /**
+     * Counts hits or unique ips within {@code [from, to)}.
+     *
+     * @param app    app to count, all apps when null
+     * @param uriIds uris to count, all uris when empty
+     */
+    public Map<AppUri, Long> count(LocalDateTime from, LocalDateTime to, String app, Collection<Long> uriIds,
+                                   boolean unique) {
+        long fromSecond = toSecond(from);
+        long toSecond = toSecond(to);
+        Collection<Map<Long, Series>> selected = uriIds.isEmpty() ? series.values() : new ArrayList<>();
+        for (Long uriId : uriIds) {
+            Map<Long, Series> apps = series.get(uriId);
+            if (apps != null) {
+                selected.add(apps);
+            }
+        }
+        Map<AppUri, Long> counts = new HashMap<>();
+        for (Map<Long, Series> apps : selected) {
+            for (Series hits : apps.values()) {
+                if (app != null && !app.equals(hits.appUri.getApp())) {
+                    continue;
+                }
+                long count = hits.count(fromSecond, toSecond, unique);
+                if (count > 0) {
+                    counts.put(hits.appUri, count);
+                }
+            }
+        }
+        return counts;
+    }
+
+    @Scheduled(cron = "0 0 * * * *")
+    public void evict() {
+        if (!enabled) {
+            return;
+        }
+        long coveredFrom = toSecond(getCoveredFrom());
+        for (Long uriId : series.keySet()) {
+            series.computeIfPresent(uriId, (id, apps) -> {
+                apps.values().removeIf(hits -> hits.evictBefore(coveredFrom) == 0);
+                return apps.isEmpty() ? null : apps;
+            });
+        }
+    }
+
+    private void add(Hit hit) {
+        long second = toSecond(hit.getTimestamp());
+        long ip = ipKey(hit.getIp());
+        series.compute(hit.getUri().getId(), (uriId, apps) -> {
+            Map<Long, Series> target = apps == null ? new ConcurrentHashMap<>() : apps;
+            target.computeIfAbsent(hit.getApp().getId(),
+                    appId -> new Series(new AppUri(hit.getApp().getName(), hit.getUri().getPath())))
+                    .add(second, ip);
+            return target;
+        });
+    }
+
+    private static long toSecond(LocalDateTime time) {
+        return time.toEpochSecond(ZoneOffset.UTC);
+    }
+
+    /**
+     * IPv4 addresses are kept as is; IPv6 addresses are reduced to a 64-bit hash with the top bit set,
+     * which keeps the two ranges apart at a negligible risk of collisions between IPv6 visitors.
+     */
+    private static long ipKey(String ip) {
+        long ipv4 = IpAddresses.parseIpv4(ip);
+        return ipv4 >= 0 ? ipv4 : Hashing.hashIp(ip) | Long.MIN_VALUE;
+    }
+
+    private static class Series {
+        private static final int INITIAL_CAPACITY = 8;
+        private final AppUri appUri;
+        private long[] seconds = new long[INITIAL_CAPACITY];
+        private long[] ips = new long[INITIAL_CAPACITY];
+        private int size;
+
+        private Series(AppUri appUri) {
+            this.appUri = appUri;
+        }
+
+        synchronized void add(long second, long ip) {
+            if (size == seconds.length) {
+                seconds = Arrays.copyOf(seconds, size * 2);
+                ips = Arrays.copyOf(ips, size * 2);
+            }
+            int position = size;
+            while (position > 0 && seconds[position - 1] > second) {
+                position--;
+            }
+            System.arraycopy(seconds, position, seconds, position + 1, size - position);
+            System.arraycopy(ips, position, ips, position + 1, size - position);
+            seconds[position] = second;
+            ips[position] = ip;
+            size++;
+        }
+
+        synchronized long count(long from, long to, boolean unique) {
+            int lo = lowerBound(from);
+            int hi = lowerBound(to);
+            if (!unique || hi - lo < 2) {
+                return Math.max(hi - lo, 0);
+            }
+            long[] range = Arrays.copyOfRange(ips, lo, hi);
+            Arrays.sort(range);
+            long distinct = 1;
+            for (int i = 1; i < range.length; i++) {
+                if (range[i] != range[i - 1]) {
+                    distinct++;
+                }
+            }
+            return distinct;
+        }
+
+        /**
+         * @return number of hits left
+         */
+        synchronized int evictBefore(long second) {
+            int from = lowerBound(second);
+            size -= from;
+            System.arraycopy(seconds, from, seconds, 0, size);
+            System.arraycopy(ips, from, ips, 0, size);
+            if (size > INITIAL_CAPACITY && size < seconds.length / 4) {
+                seconds = Arrays.copyOf(seconds, seconds.length / 2);
+                ips = Arrays.copyOf(ips, ips.length / 2);
+            }
+            return size;
+        }
+
+        private int lowerBound(long second) {
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (seconds[mid] < second) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+}
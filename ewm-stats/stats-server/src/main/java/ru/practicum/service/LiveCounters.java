@@ -0,0 +1,148 @@
+package ru.practicum.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import ru.practicum.LiveDtoResponse;
+import ru.practicum.StatsDtoRequest;
+import ru.practicum.model.AppUri;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hit and unique counts of the last 1, 5 and 15 minutes per app and uri, for near-realtime traffic
+ * monitoring without querying Postgres.
+ * <p>
+ * Hits are counted by arrival time in a ring of {@code sliceSeconds} slices of striped counters per
+ * app and uri; a slot is reset by the first hit of a new slice, and a hit racing that reset may be
+ * lost. Unique counts come from the last time each ip was seen. At most {@code maxUris} app and uri
+ * pairs are tracked at once, and only hits this instance has handed to its buffer, spool or storage
+ * are counted; duplicates, dropped and rejected hits are not.
+ */
+@Component
+public class LiveCounters {
+    private static final int HORIZON_MINUTES = 15;
+    private final Map<AppUri, Counter> counters = new ConcurrentHashMap<>();
+    private final boolean enabled;
+    private final int sliceSeconds;
+    private final int maxUris;
+
+    public LiveCounters(@Value("${ewm-stats-service.live.enabled:true}") boolean enabled,
+                        @Value("${ewm-stats-service.live.slice-seconds:5}") int sliceSeconds,
+                        @Value("${ewm-stats-service.live.max-uris:10000}") int maxUris) {
+        if (sliceSeconds < 1 || 60 % sliceSeconds != 0) {
+            throw new IllegalArgumentException("Live counter slices must divide a minute");
+        }
+        this.enabled = enabled;
+        this.sliceSeconds = sliceSeconds;
+        this.maxUris = maxUris;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void record(StatsDtoRequest request) {
+        if (!enabled) {
+            return;
+        }
+        AppUri key = new AppUri(request.getApp(), request.getUri());
+        Counter counter = counters.get(key);
+        if (counter == null) {
+            if (counters.size() >= maxUris) {
+                return;
+            }
+            counter = counters.computeIfAbsent(key, k -> new Counter(HORIZON_MINUTES * 60 / sliceSeconds));
+        }
+        counter.add(request.getIp(), now());
+    }
+
+    /**
+     * @param app  app to count, all apps when null
+     * @param uris uris to count, all uris when empty
+     * @return counts ordered by hits of the last minute descending, app and uri
+     */
+    public List<LiveDtoResponse> get(String app, Collection<String> uris, int limit) {
+        long now = now();
+        List<LiveDtoResponse> live = new ArrayList<>();
+        counters.forEach((appUri, counter) -> {
+            if ((app == null || app.equals(appUri.getApp())) && (uris.isEmpty() || uris.contains(appUri.getUri()))) {
+                live.add(new LiveDtoResponse(appUri.getApp(), appUri.getUri(),
+                        counter.hits(now, 1), counter.hits(now, 5), counter.hits(now, HORIZON_MINUTES),
+                        counter.unique(now, 1), counter.unique(now, 5), counter.unique(now, HORIZON_MINUTES)));
+            }
+        });
+        live.sort(Comparator.comparing(LiveDtoResponse::getHits1m, Comparator.reverseOrder())
+                .thenComparing(LiveDtoResponse::getHits15m, Comparator.reverseOrder())
+                .thenComparing(LiveDtoResponse::getApp)
+                .thenComparing(LiveDtoResponse::getUri));
+        return live.size() > limit ? new ArrayList<>(live.subList(0, limit)) : live;
+    }
+
+    @Scheduled(fixedDelay = 60000)
+    public void evict() {
+        long oldest = now() - HORIZON_MINUTES * 60;
+        counters.forEach((appUri, counter) -> counters.computeIfPresent(appUri,
+                (key, value) -> value.evict(oldest) ? null : value));
+    }
+
+    private static long now() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    private class Counter {
+        private final LongAdder[] hits;
+        private final AtomicLongArray slices;
+        private final Map<String, Long> lastSeen = new ConcurrentHashMap<>();
+
+        private Counter(int size) {
+            hits = new LongAdder[size];
+            slices = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) {
+                hits[i] = new LongAdder();
+                slices.set(i, -1);
+            }
+        }
+
+        void add(String ip, long second) {
+            long slice = second / sliceSeconds;
+            int slot = (int) (slice % hits.length);
+            long held = slices.get(slot);
+            if (held < slice && slices.compareAndSet(slot, held, slice)) {
+                hits[slot].reset();
+            }
+            hits[slot].increment();
+            lastSeen.put(ip, second);
+        }
+
+        long hits(long now, int minutes) {
+            long current = now / sliceSeconds;
+            long total = 0;
+            for (long slice = current - minutes * 60 / sliceSeconds + 1; slice <= current; slice++) {
+                int slot = (int) (slice % hits.length);
+                if (slices.get(slot) == slice) {
+                    total += hits[slot].sum();
+                }
+            }
+            return total;
+        }
+
+        long unique(long now, int minutes) {
+            long since = now - minutes * 60;
+            return lastSeen.values().stream()
+                    .filter(second -> second > since)
+                    .count();
+        }
+
+        /**
+         * @return whether nothing was seen since {@code oldest}
+         */
+        boolean evict(long oldest) {
+            lastSeen.values().removeIf(second -> second <= oldest);
+            return lastSeen.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package ru.practicum.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.IntFunction;
+
+/**
+ * Runs the parts of a long-range stats query concurrently on a small shared pool, each part in its
+ * own read-only transaction. The pool size bounds the number of concurrent aggregation queries over
+ * all requests, so it should stay well below the connection pool size.
+ */
+@Component
+@ConditionalOnProperty(name = "ewm-stats-service.storage.engine", havingValue = "postgres", matchIfMissing = true)
+@Slf4j
+public class ParallelAggregator {
+    private final TransactionTemplate transaction;
+    private final boolean enabled;
+    private final int threads;
+    private final Duration minRange;
+    private final Duration slice;
+    private final ExecutorService executor;
+
+    public ParallelAggregator(PlatformTransactionManager transactionManager,
+                              @Value("${ewm-stats-service.parallel.enabled:true}") boolean enabled,
+                              @Value("${ewm-stats-service.parallel.threads:4}") int threads,
+                              @Value("${ewm-stats-service.parallel.min-range-hours:72}") long minRangeHours,
+                              @Value("${ewm-stats-service.parallel.slice-hours:24}") long sliceHours) {
+        this.transaction = new TransactionTemplate(transactionManager);
+        this.transaction.setReadOnly(true);
+        this.enabled = enabled;
+        this.threads = threads;
+        this.minRange = Duration.ofHours(minRangeHours);
+        this.slice = Duration.ofHours(sliceHours);
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(threads * 64), task -> {
+                    Thread thread = new Thread(task, "stats-aggregator-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return whether {@code [from, to)} is long enough to be split
+     */
+    public boolean isWorthSplitting(LocalDateTime from, LocalDateTime to) {
+        return enabled && Duration.between(from, to).compareTo(minRange) >= 0;
+    }
+
+    /**
+     * Aggregates {@code [from, to)} slice by slice; slices are aligned to whole hours so that
+     * each of them can still be answered from rollups.
+     */
+    public <T> List<T> bySlice(LocalDateTime from, LocalDateTime to,
+                               BiFunction<LocalDateTime, LocalDateTime, T> aggregate) {
+        List<Callable<T>> tasks = new ArrayList<>();
+        LocalDateTime sliceFrom = from;
+        while (sliceFrom.isBefore(to)) {
+            LocalDateTime next = sliceFrom.truncatedTo(ChronoUnit.HOURS).plus(slice);
+            LocalDateTime sliceTo = next.isBefore(to) ? next : to;
+            LocalDateTime start = sliceFrom;
+            tasks.add(() -> aggregate.apply(start, sliceTo));
+            sliceFrom = sliceTo;
+        }
+        return invokeAll(tasks);
+    }
+
+    /**
+     * Aggregates disjoint shards {@code 0 .. shards - 1} of the data, one task per pool thread.
+     */
+    public <T> List<T> byShard(IntFunction<T> aggregate) {
+        List<Callable<T>> tasks = new ArrayList<>();
+        for (int shard = 0; shard < threads; shard++) {
+            int current = shard;
+            tasks.add(() -> aggregate.apply(current));
+        }
+        return invokeAll(tasks);
+    }
+
+    public int getShards() {
+        return threads;
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    private <T> List<T> invokeAll(List<Callable<T>> tasks) {
+        List<Future<T>> futures = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            futures.add(executor.submit(() -> transaction.execute(status -> {
+                try {
+                    return task.call();
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            })));
+        }
+        List<T> results = new ArrayList<>(futures.size());
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while aggregating stats", e);
+        } catch (ExecutionException e) {
+            futures.forEach(future -> future.cancel(true));
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        log.info("Stats aggregated in {} parallel parts", tasks.size());
+        return results;
+    }
+}
@@ -0,0 +1,127 @@
+package ru.practicum.service;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.practicum.model.Hit;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Bounded LRU cache of partial stats results over closed hours, that is hours before the current one.
+ * Hits arriving late for a closed hour evict every entry whose range covers them. Only hits written
+ * by this instance are seen, so a late hit written elsewhere is not reflected until the entry ages out.
+ */
+@Component
+@Slf4j
+public class StatsCache implements HitListener {
+    private final boolean enabled;
+    private final Map<Key, Object> entries;
+    private final AtomicLong generation = new AtomicLong();
+
+    public StatsCache(@Value("${ewm-stats-service.cache.enabled:true}") boolean enabled,
+                      @Value("${ewm-stats-service.cache.max-entries:10000}") int maxEntries) {
+        this.enabled = enabled;
+        this.entries = Collections.synchronizedMap(new LinkedHashMap<Key, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+                return size() > maxEntries;
+            }
+        });
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return start of the current hour; everything before it is closed and may be cached
+     */
+    public LocalDateTime getClosedUntil() {
+        return LocalDateTime.now().truncatedTo(ChronoUnit.HOURS);
+    }
+
+    /**
+     * Cached values are shared between callers and must not be modified. When the cache is disabled
+     * the value is always loaded.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(Key key, Supplier<T> loader) {
+        if (!enabled) {
+            return loader.get();
+        }
+        Object value = entries.get(key);
+        if (value != null) {
+            return (T) value;
+        }
+        long loadedAt = generation.get();
+        T loaded = loader.get();
+        synchronized (entries) {
+            if (generation.get() == loadedAt) {
+                entries.put(key, loaded);
+            }
+        }
+        return loaded;
+    }
+
+    @Override
+    public void onHits(List<Hit> hits) {
+        LocalDateTime closedUntil = getClosedUntil();
+        List<LocalDateTime> late = new ArrayList<>();
+        for (Hit hit : hits) {
+            if (hit.getTimestamp().isBefore(closedUntil)) {
+                late.add(hit.getTimestamp());
+            }
+        }
+        if (late.isEmpty()) {
+            return;
+        }
+        int evicted;
+        synchronized (entries) {
+            generation.incrementAndGet();
+            int before = entries.size();
+            entries.keySet().removeIf(key -> late.stream().anyMatch(key::covers));
+            evicted = before - entries.size();
+        }
+        log.info("Late hits for closed hours, {} cached stats evicted", evicted);
+    }
+
+    /**
+     * Drops every entry, for changes to closed hours that do not arrive as hits.
+     */
+    public void clear() {
+        synchronized (entries) {
+            generation.incrementAndGet();
+            entries.clear();
+        }
+        log.info("Cached stats cleared");
+    }
+
+    public static Key key(LocalDateTime from, LocalDateTime to, String app, List<String> uris, boolean unique,
+                          boolean approximate) {
+        List<String> sortedUris = uris == null ? Collections.emptyList() : new ArrayList<>(new TreeSet<>(uris));
+        return new Key(from, to, app, sortedUris, unique, approximate);
+    }
+
+    @AllArgsConstructor(access = AccessLevel.PRIVATE)
+    @EqualsAndHashCode
+    public static class Key {
+        private final LocalDateTime from;
+        private final LocalDateTime to;
+        private final String app;
+        private final List<String> uris;
+        private final boolean unique;
+        private final boolean approximate;
+
+        private boolean covers(LocalDateTime timestamp) {
+            return !timestamp.isBefore(from) && timestamp.isBefore(to);
+        }
+    }
+}
@@ -1,14 +1,45 @@
 package ru.practicum.service;
 
+import ru.practicum.LiveDtoResponse;
 import ru.practicum.StatsDtoRequest;
 import ru.practicum.StatsDtoResponse;
+import ru.practicum.TimeseriesDtoResponse;
+import ru.practicum.model.Interval;
+import ru.practicum.model.StatsQuery;
+import ru.practicum.model.StatsResult;
 
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
 
 public interface StatsService {
 
     void createHit(StatsDtoRequest request);
 
-    List<StatsDtoResponse> getStats(LocalDateTime start, LocalDateTime end, List<String> uris, Boolean unique);
+    void createHits(List<StatsDtoRequest> requests);
+
+    StatsResult getStats(StatsQuery query);
+
+    void streamStats(StatsQuery query, Consumer<StatsDtoResponse> consumer);
+
+    List<TimeseriesDtoResponse> getTimeseries(StatsQuery query, Interval interval);
+
+    List<StatsDtoResponse> getTop(String app, LocalDateTime start, LocalDateTime end, int limit);
+
+    Map<Long, Long> getViews(String app, Map<Long, LocalDateTime> since);
+
+    /**
+     * @return relative error of approximate unique counts streamed for the query, empty when exact
+     */
+    Optional<Double> getStreamRelativeError(StatsQuery query);
+
+    /**
+     * @return relative error of approximate views, counted for events that start before raw hits are
+     * past retention; empty when every count is exact
+     */
+    Optional<Double> getViewsRelativeError(Map<Long, LocalDateTime> since);
+
+    List<LiveDtoResponse> getLive(String app, List<String> uris, int limit);
 }
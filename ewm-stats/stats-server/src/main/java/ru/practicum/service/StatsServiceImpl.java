@@ -2,48 +2,634 @@ package ru.practicum.service;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import ru.practicum.LiveDtoResponse;
 import ru.practicum.StatsDtoRequest;
 import ru.practicum.StatsDtoResponse;
-import ru.practicum.mapper.StatsMapper;
-import ru.practicum.model.App;
-import ru.practicum.model.Hit;
-import ru.practicum.storage.AppStorage;
-import ru.practicum.storage.HitStorage;
+import ru.practicum.TimeseriesDtoResponse;
+import ru.practicum.config.ReadOnlyRouting;
+import ru.practicum.exception.ValidationException;
+import ru.practicum.model.AppUri;
+import ru.practicum.model.Interval;
+import ru.practicum.model.StatsQuery;
+import ru.practicum.model.StatsResult;
+import ru.practicum.sketch.Hashing;
+import ru.practicum.sketch.HyperLogLog;
+import ru.practicum.storage.AppDictionary;
+import ru.practicum.storage.HitJdbcStorage;
+import ru.practicum.storage.RangePlan;
+import ru.practicum.storage.RetentionPolicy;
+import ru.practicum.storage.RollupStorage;
+import ru.practicum.storage.SketchStorage;
+import ru.practicum.storage.UriDictionary;
+import ru.practicum.storage.engine.StorageEngine;
 
-import javax.transaction.Transactional;
 import java.time.LocalDateTime;
-import java.util.Collections;
-import java.util.List;
-import java.util.Optional;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.function.Consumer;
 
+/**
+ * Stats over the configured {@link StorageEngine}. The Postgres repositories and the services built on
+ * them exist only with the postgres engine, so they are injected lazily and touched only once
+ * {@link StorageEngine#hasRollups} has confirmed that engine.
+ */
 @Service
 @RequiredArgsConstructor
 @Slf4j
-@Transactional
 public class StatsServiceImpl implements StatsService {
-    private final AppStorage appStorage;
-    private final HitStorage hitStorage;
+    private static final String EVENT_URI = "/events/";
+    private static final Comparator<StatsDtoResponse> STATS_ORDER = Comparator
+            .comparing(StatsDtoResponse::getHits, Comparator.reverseOrder())
+            .thenComparing(StatsDtoResponse::getApp)
+            .thenComparing(StatsDtoResponse::getUri);
+    @Lazy
+    private final HitJdbcStorage hitJdbcStorage;
+    @Lazy
+    private final RollupStorage rollupStorage;
+    @Lazy
+    private final SketchStorage sketchStorage;
+    @Lazy
+    private final UriDictionary uriDictionary;
+    @Lazy
+    private final AppDictionary appDictionary;
+    private final TopUriTracker topUriTracker;
+    private final StatsCache statsCache;
+    @Lazy
+    private final HotWindow hotWindow;
+    @Lazy
+    private final ParallelAggregator parallelAggregator;
+    @Lazy
+    private final HitArchiver hitArchiver;
+    private final RetentionPolicy retentionPolicy;
+    private final HitDeduplicator hitDeduplicator;
+    private final HitSpool hitSpool;
+    private final HitBuffer hitBuffer;
+    private final StorageEngine storageEngine;
+    private final LiveCounters liveCounters;
+
+    @Value("${ewm-stats-service.hll.approximate-by-default:false}")
+    private boolean approximateByDefault;
+
+    @Value("${ewm-stats-service.top.candidates-factor:4}")
+    private int candidatesFactor;
+
+    @Value("${ewm-stats-service.cache.max-visitors:100000}")
+    private int maxCachedVisitors;
 
     public void createHit(StatsDtoRequest request) {
-        Optional<App> savedApp = appStorage.findByName(request.getApp());
-        App app = savedApp.orElseGet(() -> appStorage.save(App.builder()
-                .name(request.getApp())
-                .build())
-        );
-        Hit hit = hitStorage.save(StatsMapper.toHit(request, app));
-        log.info("New Hit saved. ID is: {}", hit.getId());
+        if (hitDeduplicator.isDuplicate(request)) {
+            return;
+        }
+        if (hitBuffer.isEnabled()) {
+            if (hitBuffer.offer(request)) {
+                liveCounters.record(request);
+            }
+            return;
+        }
+        hitSpool.write(List.of(request));
+        liveCounters.record(request);
+    }
+
+    public void createHits(List<StatsDtoRequest> requests) {
+        List<StatsDtoRequest> accepted = new ArrayList<>(requests.size());
+        for (StatsDtoRequest request : requests) {
+            if (!hitDeduplicator.isDuplicate(request)) {
+                accepted.add(request);
+            }
+        }
+        if (accepted.isEmpty()) {
+            return;
+        }
+        hitSpool.write(accepted);
+        accepted.forEach(liveCounters::record);
+    }
+
+    public StatsResult getStats(StatsQuery prefixQuery) {
+        Optional<StatsQuery> resolved = resolvePrefix(prefixQuery);
+        if (resolved.isEmpty()) {
+            return new StatsResult(Collections.emptyList(), null);
+        }
+        StatsQuery query = resolved.get();
+        if (!storageEngine.hasRollups()) {
+            List<StatsDtoResponse> stats = new ArrayList<>();
+            streamStats(query, stats::add);
+            return new StatsResult(stats, null);
+        }
+        if (hotWindow.covers(query.getStart())) {
+            return new StatsResult(getHotStats(query), null);
+        }
+        Double relativeError = getStreamRelativeError(query).orElse(null);
+        return new StatsResult(ReadOnlyRouting.run(() -> {
+            if (statsCache.isEnabled() || hotWindow.isEnabled() || parallelAggregator.isEnabled() ||
+                    hitArchiver.reaches(query.getStart())) {
+                return getMergedStats(query);
+            }
+            List<StatsDtoResponse> stats = new ArrayList<>();
+            streamStats(query, stats::add);
+            return stats;
+        }), relativeError);
+    }
+
+    public void streamStats(StatsQuery prefixQuery, Consumer<StatsDtoResponse> consumer) {
+        Optional<StatsQuery> resolved = resolvePrefix(prefixQuery);
+        if (resolved.isEmpty()) {
+            return;
+        }
+        StatsQuery query = resolved.get();
+        if (storageEngine.hasRollups() && hitArchiver.reaches(query.getStart())) {
+            ReadOnlyRouting.run(() -> getMergedStats(query)).forEach(consumer);
+        } else if (!query.isUnique()) {
+            log.info("Request for statistic accepted");
+            storageEngine.aggregate(query, consumer);
+        } else if (!storageEngine.hasRollups() || !isApproximate(query)) {
+            log.info("Request for statistic with uniq accepted");
+            storageEngine.distinct(query, consumer);
+        } else {
+            log.info("Request for approximate statistic with uniq accepted");
+            ReadOnlyRouting.run(() -> getApproximateStats(query)).forEach(consumer);
+        }
+    }
+
+    @Transactional(readOnly = true)
+    public List<TimeseriesDtoResponse> getTimeseries(StatsQuery query, Interval interval) {
+        requireRollups("Timeseries");
+        if (query.isUnique() && isPastRawRetention(query.getStart())) {
+            throw new ValidationException("Unique timeseries are only kept from " +
+                    retentionPolicy.getRawCutoff().orElseThrow() + " on");
+        }
+        List<Long> uriIds = uriDictionary.findIds(query.getUris());
+        List<TimeseriesDtoResponse> series = new ArrayList<>();
+        if (uriIds.isEmpty()) {
+            return series;
+        }
+        if (query.isUnique()) {
+            log.info("Timeseries request with uniq accepted, interval: {}", interval);
+            hitJdbcStorage.timeseriesUniq(query, uriIds, interval, series::add);
+        } else {
+            log.info("Timeseries request accepted, interval: {}", interval);
+            rollupStorage.timeseries(query, uriIds, interval, series::add);
+        }
+        return series;
+    }
+
+    @Transactional(readOnly = true)
+    public List<StatsDtoResponse> getTop(String app, LocalDateTime start, LocalDateTime end, int limit) {
+        requireRollups("Top uris");
+        Optional<Long> appId = appDictionary.findId(app);
+        if (appId.isEmpty()) {
+            return Collections.emptyList();
+        }
+        StatsQuery query = StatsQuery.builder()
+                .start(start)
+                .end(end)
+                .app(app)
+                .limit(limit)
+                .build();
+        List<StatsDtoResponse> stats = new ArrayList<>();
+        Optional<List<Long>> candidates = topUriTracker.getCandidates(appId.get(), start, end, limit * candidatesFactor);
+        if (candidates.isEmpty()) {
+            log.info("Top request for app {} outside tracked window, counting all uris", app);
+            rollupStorage.query(query, Collections.emptyList(), stats::add);
+        } else if (!candidates.get().isEmpty()) {
+            log.info("Top request for app {} with {} candidates", app, candidates.get().size());
+            rollupStorage.query(query, candidates.get(), stats::add);
+        }
+        return stats;
+    }
+
+    public Map<Long, Long> getViews(String app, Map<Long, LocalDateTime> since) {
+        if (!storageEngine.hasRollups()) {
+            return countDistinctViews(app, since);
+        }
+        return ReadOnlyRouting.run(() -> countViews(app, since));
+    }
+
+    public Optional<Double> getStreamRelativeError(StatsQuery query) {
+        if (storageEngine.hasRollups() && isApproximate(query)) {
+            return Optional.of(sketchStorage.getRelativeError());
+        }
+        return Optional.empty();
     }
 
-    public List<StatsDtoResponse> getStats(LocalDateTime start, LocalDateTime end, List<String> uris, Boolean unique) {
-        if (uris == null) {
-            uris = Collections.emptyList();
+    public Optional<Double> getViewsRelativeError(Map<Long, LocalDateTime> since) {
+        if (!since.isEmpty() && isPastRawRetention(Collections.min(since.values()))) {
+            return Optional.of(sketchStorage.getRelativeError());
+        }
+        return Optional.empty();
+    }
+
+    public List<LiveDtoResponse> getLive(String app, List<String> uris, int limit) {
+        if (!liveCounters.isEnabled()) {
+            throw new IllegalStateException("Live counters are disabled");
+        }
+        return liveCounters.get(app, uris == null ? Collections.emptySet() : new HashSet<>(uris), limit);
+    }
+
+    /**
+     * Replaces a uri prefix with the uris that match it in the prefix index.
+     *
+     * @return empty if no uri matches
+     */
+    private Optional<StatsQuery> resolvePrefix(StatsQuery query) {
+        if (query.getUriPrefix() == null) {
+            return Optional.of(query);
+        }
+        requireRollups("Uri prefix queries");
+        List<String> uris = new ArrayList<>(uriDictionary.findByPrefix(query.getUriPrefix()).keySet());
+        log.info("Uri prefix {} matches {} uris", query.getUriPrefix(), uris.size());
+        if (uris.isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.of(query.toBuilder()
+                .uris(uris)
+                .uriPrefix(null)
+                .build());
+    }
+
+    private List<StatsDtoResponse> getApproximateStats(StatsQuery query) {
+        List<String> uris = query.getUris() == null ? Collections.emptyList() : query.getUris();
+        List<Long> uriIds = uriDictionary.findIds(uris);
+        if (!uris.isEmpty() && uriIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return page(sketchStorage.getStatsUniq(query.getStart(), query.getEnd(), uriIds), query);
+    }
+
+    private void requireRollups(String queries) {
+        if (!storageEngine.hasRollups()) {
+            throw new IllegalStateException(queries + " are only supported by the postgres storage engine");
+        }
+    }
+
+    /**
+     * Counts a range that lies entirely inside the hot window from memory. Unique counts are exact
+     * here even when an approximate answer was asked for.
+     */
+    private List<StatsDtoResponse> getHotStats(StatsQuery query) {
+        List<String> uris = query.getUris() == null ? Collections.emptyList() : query.getUris();
+        List<Long> uriIds = uriDictionary.findIds(uris);
+        if (!uris.isEmpty() && uriIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        log.info("Request for statistic accepted, answered from the hot window");
+        List<StatsDtoResponse> stats = new ArrayList<>();
+        hotWindow.count(query.getStart(), query.getEnd().plusSeconds(1), query.getApp(), uriIds, query.isUnique())
+                .forEach((appUri, count) -> stats.add(new StatsDtoResponse(appUri.getApp(), appUri.getUri(), count)));
+        stats.sort(STATS_ORDER);
+        return page(stats, query);
+    }
+
+    /**
+     * Answers the closed hours of the range from the cache and only recounts the open trailing hour.
+     * Exact unique counts cannot be merged, so the visitors of the closed hours are cached instead, as
+     * ip hashes, and merged with the visitors of the open hour. Closed hours with more than
+     * {@code maxCachedVisitors} hits, counted from the rollups, are counted in the database instead. Long ranges are aggregated in parallel parts
+     * and merged.
+     */
+    private List<StatsDtoResponse> getMergedStats(StatsQuery query) {
+        List<String> uris = query.getUris() == null ? Collections.emptyList() : query.getUris();
+        List<Long> uriIds = uriDictionary.findIds(uris);
+        if (!uris.isEmpty() && uriIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        boolean approximate = isApproximate(query);
+        boolean exactUnique = query.isUnique() && !approximate;
+        LocalDateTime to = query.getEnd().plusSeconds(1);
+        LocalDateTime closedUntil = statsCache.getClosedUntil();
+        LocalDateTime boundary = RangePlan.floor(to.isBefore(closedUntil) ? to : closedUntil, ChronoUnit.HOURS);
+        if (!exactUnique && !boundary.isAfter(query.getStart())) {
+            List<StatsDtoResponse> stats = new ArrayList<>();
+            streamStats(query, stats::add);
+            return stats;
         }
-        if (unique) {
+        StatsCache.Key key = StatsCache.key(query.getStart(), boundary, query.getApp(), uris, query.isUnique(),
+                approximate);
+        List<StatsDtoResponse> stats = new ArrayList<>();
+        if (!query.isUnique()) {
+            log.info("Request for statistic accepted, closed hours until {} cached", boundary);
+            Map<AppUri, Long> hits = new HashMap<>(statsCache.get(key, () -> countHits(query, uriIds,
+                    query.getStart(), boundary)));
+            countHits(query, uriIds, boundary, to).forEach((appUri, count) -> hits.merge(appUri, count, Long::sum));
+            hits.forEach((appUri, count) -> stats.add(new StatsDtoResponse(appUri.getApp(), appUri.getUri(), count)));
+        } else if (approximate) {
+            log.info("Request for approximate statistic with uniq accepted, closed hours until {} cached", boundary);
+            Map<AppUri, HyperLogLog> closed = statsCache.get(key, () -> getSketches(query, uriIds,
+                    query.getStart(), boundary));
+            Map<AppUri, HyperLogLog> sketches = new HashMap<>();
+            closed.forEach((appUri, sketch) -> copy(sketches, appUri, sketch));
+            getSketches(query, uriIds, boundary, to).forEach((appUri, sketch) -> copy(sketches, appUri, sketch));
+            sketches.forEach((appUri, sketch) -> stats.add(new StatsDtoResponse(appUri.getApp(), appUri.getUri(),
+                    sketch.estimate())));
+        } else if (!statsCache.isEnabled() || !boundary.isAfter(query.getStart()) ||
+                countClosedHits(query, uriIds, boundary) > maxCachedVisitors) {
             log.info("Request for statistic with uniq accepted");
-            return hitStorage.getStatsUniq(start, end, uris);
+            stats.addAll(countUniq(query, uriIds));
+        } else {
+            log.info("Request for statistic with uniq accepted, visitors of closed hours until {} cached", boundary);
+            Map<AppUri, Set<Long>> visitors = new HashMap<>();
+            statsCache.get(key, () -> getVisitors(query, uriIds, query.getStart(), boundary))
+                    .forEach((appUri, ips) -> addVisitors(visitors, appUri, ips));
+            getVisitors(query, uriIds, boundary, to).forEach((appUri, ips) -> addVisitors(visitors, appUri, ips));
+            visitors.forEach((appUri, ips) -> stats.add(new StatsDtoResponse(appUri.getApp(), appUri.getUri(),
+                    (long) ips.size())));
         }
-        log.info("Request for statistic accepted");
-        return hitStorage.getStats(start, end, uris);
+        stats.sort(STATS_ORDER);
+        return page(stats, query);
+    }
+
+    private Map<AppUri, Long> countHits(StatsQuery query, List<Long> uriIds, LocalDateTime from, LocalDateTime to) {
+        Map<AppUri, Long> hits = new HashMap<>();
+        if (!from.isBefore(to)) {
+            return hits;
+        }
+        if (hotWindow.covers(from)) {
+            return hotWindow.count(from, to, query.getApp(), uriIds, false);
+        }
+        if (parallelAggregator.isWorthSplitting(from, to)) {
+            parallelAggregator.bySlice(from, to,
+                            (sliceFrom, sliceTo) -> countRollups(query, uriIds, sliceFrom, sliceTo))
+                    .forEach(slice -> slice.forEach((appUri, count) -> hits.merge(appUri, count, Long::sum)));
+            return hits;
+        }
+        return countRollups(query, uriIds, from, to);
+    }
+
+    private Map<AppUri, Long> countRollups(StatsQuery query, List<Long> uriIds, LocalDateTime from,
+                                           LocalDateTime to) {
+        Map<AppUri, Long> hits = new HashMap<>();
+        StatsQuery range = query.toBuilder()
+                .start(from)
+                .end(to.minusSeconds(1))
+                .limit(null)
+                .offset(0)
+                .build();
+        rollupStorage.query(range, uriIds, stat -> hits.put(new AppUri(stat.getApp(), stat.getUri()),
+                stat.getHits().longValue()));
+        for (RangePlan.Segment segment : getArchivedRaw(from, to, retentionPolicy.getCountZones())) {
+            hitArchiver.scan(segment.getFrom(), segment.getTo(), query.getApp(), uriSet(query), false,
+                    (appUri, second, ip) -> hits.merge(appUri, 1L, Long::sum));
+        }
+        return hits;
+    }
+
+    /**
+     * Merged sketches of {@code [from, to)}.
+     */
+    private Map<AppUri, HyperLogLog> getSketches(StatsQuery query, List<Long> uriIds, LocalDateTime from,
+                                                 LocalDateTime to) {
+        if (!from.isBefore(to)) {
+            return Collections.emptyMap();
+        }
+        Map<AppUri, HyperLogLog> sketches = new HashMap<>();
+        if (!parallelAggregator.isWorthSplitting(from, to)) {
+            sketches.putAll(sketchStorage.getSketches(from, to.minusSeconds(1), uriIds));
+        } else {
+            parallelAggregator.bySlice(from, to,
+                            (sliceFrom, sliceTo) -> sketchStorage.getSketches(sliceFrom, sliceTo.minusSeconds(1),
+                                    uriIds))
+                    .forEach(slice -> slice.forEach((appUri, sketch) -> copy(sketches, appUri, sketch)));
+        }
+        for (RangePlan.Segment segment : getArchivedRaw(from, to, retentionPolicy.getSketchZones())) {
+            hitArchiver.scan(segment.getFrom(), segment.getTo(), null, uriSet(query), true,
+                    (appUri, second, ip) -> sketches.computeIfAbsent(appUri,
+                            key -> new HyperLogLog(sketchStorage.getPrecision())).add(ip));
+        }
+        return sketches;
+    }
+
+    /**
+     * Exact unique counts, unpaged. Distinct ips cannot be summed over time slices, so a long range is
+     * split into disjoint uri shards instead.
+     */
+    private List<StatsDtoResponse> countUniq(StatsQuery query, List<Long> uriIds) {
+        StatsQuery unpaged = query.toBuilder().limit(null).offset(0).build();
+        List<StatsDtoResponse> uniq = new ArrayList<>();
+        if (hitArchiver.reaches(query.getStart())) {
+            countArchivedUniq(unpaged, uriIds).forEach((appUri, ips) -> uniq.add(new StatsDtoResponse(
+                    appUri.getApp(), appUri.getUri(), (long) ips.size())));
+            return uniq;
+        }
+        if (!parallelAggregator.isWorthSplitting(query.getStart(), query.getEnd().plusSeconds(1))) {
+            hitJdbcStorage.queryUniq(unpaged, uriIds, uniq::add);
+            return uniq;
+        }
+        int shards = parallelAggregator.getShards();
+        parallelAggregator.byShard(shard -> {
+            List<StatsDtoResponse> part = new ArrayList<>();
+            hitJdbcStorage.queryUniq(unpaged, uriIds, shard, shards, part::add);
+            return part;
+        }).forEach(uniq::addAll);
+        return uniq;
+    }
+
+    /**
+     * Distinct visitors of {@code [from, to)} as ip hashes, unpaged.
+     */
+    private Map<AppUri, Set<Long>> getVisitors(StatsQuery query, List<Long> uriIds, LocalDateTime from,
+                                               LocalDateTime to) {
+        if (!from.isBefore(to)) {
+            return Collections.emptyMap();
+        }
+        StatsQuery range = query.toBuilder()
+                .start(from)
+                .end(to.minusSeconds(1))
+                .limit(null)
+                .offset(0)
+                .build();
+        if (hitArchiver.reaches(from)) {
+            return countArchivedUniq(range, uriIds);
+        }
+        Map<AppUri, Set<Long>> visitors = new HashMap<>();
+        hitJdbcStorage.scanVisitors(range, uriIds, (appUri, ip) -> visitors.computeIfAbsent(appUri,
+                key -> new HashSet<>()).add(Hashing.hashIp(ip)));
+        return visitors;
+    }
+
+    /**
+     * Hits of the closed hours from the cached hit counts, an upper bound of their visitors that is
+     * known before the visitors are scanned.
+     */
+    private long countClosedHits(StatsQuery query, List<Long> uriIds, LocalDateTime boundary) {
+        StatsCache.Key key = StatsCache.key(query.getStart(), boundary, query.getApp(), query.getUris(), false,
+                false);
+        long count = 0;
+        for (long hits : statsCache.get(key, () -> countHits(query, uriIds, query.getStart(), boundary)).values()) {
+            count += hits;
+        }
+        return count;
+    }
+
+    private void addVisitors(Map<AppUri, Set<Long>> visitors, AppUri appUri, Set<Long> ips) {
+        visitors.computeIfAbsent(appUri, key -> new HashSet<>()).addAll(ips);
+    }
+
+    /**
+     * Unique views of every event uri from its own start. Events without hits are left out. Events
+     * starting before raw hits are past retention are counted from sketches, see
+     * {@link #countExpiredViews}.
+     */
+    /**
+     * Counts views with the storage engine's distinct query, one query per distinct {@code since}.
+     * Views have no upper bound, so every query runs to the end of time.
+     */
+    private Map<Long, Long> countDistinctViews(String app, Map<Long, LocalDateTime> since) {
+        log.info("Views request for {} events accepted", since.size());
+        Map<LocalDateTime, List<String>> urisBySince = new HashMap<>();
+        since.forEach((eventId, start) -> urisBySince.computeIfAbsent(start, key -> new ArrayList<>())
+                .add(EVENT_URI + eventId));
+        Map<Long, Long> views = new HashMap<>();
+        urisBySince.forEach((start, uris) -> storageEngine.distinct(StatsQuery.builder()
+                        .start(start)
+                        .end(LocalDateTime.MAX)
+                        .app(app)
+                        .uris(uris)
+                        .unique(true)
+                        .build(),
+                stats -> views.merge(Long.valueOf(stats.getUri().substring(EVENT_URI.length())),
+                        stats.getHits().longValue(), Long::sum)));
+        return views;
+    }
+
+    private Map<Long, Long> countViews(String app, Map<Long, LocalDateTime> since) {
+        Map<String, Long> eventIds = new HashMap<>();
+        since.keySet().forEach(eventId -> eventIds.put(EVENT_URI + eventId, eventId));
+        Map<Long, Long> eventIdsByUriId = new HashMap<>();
+        Map<Long, LocalDateTime> sinceByUriId = new HashMap<>();
+        Map<Long, LocalDateTime> expired = new HashMap<>();
+        uriDictionary.find(eventIds.keySet()).forEach((uri, uriId) -> {
+            Long eventId = eventIds.get(uri);
+            eventIdsByUriId.put(uriId, eventId);
+            if (isPastRawRetention(since.get(eventId))) {
+                expired.put(uriId, since.get(eventId));
+            } else {
+                sinceByUriId.put(uriId, since.get(eventId));
+            }
+        });
+        Map<Long, Long> views = new HashMap<>();
+        if (!expired.isEmpty()) {
+            log.info("Views request for {} events past raw hit retention accepted", expired.size());
+            countExpiredViews(app, expired).forEach((uriId, count) -> views.put(eventIdsByUriId.get(uriId), count));
+        }
+        if (sinceByUriId.isEmpty()) {
+            return views;
+        }
+        log.info("Views request for {} events accepted", sinceByUriId.size());
+        LocalDateTime earliest = Collections.min(sinceByUriId.values());
+        if (!hitArchiver.reaches(earliest)) {
+            hitJdbcStorage.countViews(app, sinceByUriId)
+                    .forEach((uriId, count) -> views.put(eventIdsByUriId.get(uriId), count));
+            return views;
+        }
+        Map<Long, Set<Long>> visitors = new HashMap<>();
+        hitArchiver.scan(earliest, hitArchiver.getArchivedUntil().orElse(earliest), app, eventIds.keySet(), true,
+                (appUri, second, ip) -> {
+                    Long eventId = eventIds.get(appUri.getUri());
+                    if (second >= since.get(eventId).toEpochSecond(ZoneOffset.UTC)) {
+                        visitors.computeIfAbsent(eventId, key -> new HashSet<>()).add(ip);
+                    }
+                });
+        hitJdbcStorage.scanViewers(app, sinceByUriId, (uriId, ip) -> visitors.computeIfAbsent(
+                eventIdsByUriId.get(uriId), key -> new HashSet<>()).add(Hashing.hashIp(ip)));
+        visitors.forEach((eventId, ips) -> views.put(eventId, (long) ips.size()));
+        return views;
+    }
+
+    /**
+     * Approximate unique views per uri from sketches, each uri from the start of the day of its own
+     * {@code since}, the resolution sketches are kept at past the raw retention. Uris starting on the
+     * same day share one sketch query.
+     *
+     * @param app app to count, all apps when null
+     */
+    private Map<Long, Long> countExpiredViews(String app, Map<Long, LocalDateTime> since) {
+        Map<LocalDateTime, List<Long>> uriIdsByDay = new TreeMap<>();
+        since.forEach((uriId, from) -> uriIdsByDay.computeIfAbsent(RangePlan.floor(from, ChronoUnit.DAYS),
+                key -> new ArrayList<>()).add(uriId));
+        Map<String, Long> uriIds = new HashMap<>();
+        uriDictionary.findUris(since.keySet()).forEach((uriId, uri) -> uriIds.put(uri, uriId));
+        LocalDateTime now = LocalDateTime.now();
+        Map<Long, HyperLogLog> sketches = new HashMap<>();
+        uriIdsByDay.forEach((day, dayUriIds) -> sketchStorage.getSketches(day, now, dayUriIds)
+                .forEach((appUri, sketch) -> {
+                    if (app == null || app.equals(appUri.getApp())) {
+                        copy(sketches, uriIds.get(appUri.getUri()), sketch);
+                    }
+                }));
+        Map<Long, Long> views = new HashMap<>();
+        sketches.forEach((uriId, sketch) -> views.put(uriId, sketch.estimate()));
+        return views;
+    }
+
+    /**
+     * Distinct visitors of a range that reaches into archived days, as ip hashes: archived hits are
+     * merged with whatever Postgres still holds for the range, including hits imported later.
+     */
+    private Map<AppUri, Set<Long>> countArchivedUniq(StatsQuery query, List<Long> uriIds) {
+        Map<AppUri, Set<Long>> visitors = new HashMap<>();
+        LocalDateTime to = query.getEnd().plusSeconds(1);
+        LocalDateTime archivedUntil = hitArchiver.getArchivedUntil().orElse(query.getStart());
+        hitArchiver.scan(query.getStart(), to.isBefore(archivedUntil) ? to : archivedUntil, query.getApp(),
+                uriSet(query), true, (appUri, second, ip) -> visitors.computeIfAbsent(appUri,
+                        key -> new HashSet<>()).add(ip));
+        hitJdbcStorage.scanVisitors(query, uriIds, (appUri, ip) -> visitors.computeIfAbsent(appUri,
+                key -> new HashSet<>()).add(Hashing.hashIp(ip)));
+        log.info("Unique visitors counted over archived hits until {}", archivedUntil);
+        return visitors;
+    }
+
+    /**
+     * Raw-hit segments of {@code [from, to)} that lie in archived days. Archived days end on a day
+     * boundary, so clipping the range there leaves the raw edges of the rollup plan unchanged.
+     */
+    private List<RangePlan.Segment> getArchivedRaw(LocalDateTime from, LocalDateTime to,
+                                                   List<RangePlan.Zone> zones) {
+        Optional<LocalDateTime> archivedUntil = hitArchiver.getArchivedUntil();
+        if (archivedUntil.isEmpty() || !from.isBefore(archivedUntil.get())) {
+            return Collections.emptyList();
+        }
+        LocalDateTime until = to.isBefore(archivedUntil.get()) ? to : archivedUntil.get();
+        List<RangePlan.Segment> raw = new ArrayList<>();
+        for (RangePlan.Segment segment : RangePlan.split(from, until, zones)) {
+            if (segment.isRaw()) {
+                raw.add(segment);
+            }
+        }
+        return raw;
+    }
+
+    private Set<String> uriSet(StatsQuery query) {
+        return query.getUris() == null ? Collections.emptySet() : new HashSet<>(query.getUris());
+    }
+
+    private <K> void copy(Map<K, HyperLogLog> sketches, K key, HyperLogLog sketch) {
+        sketches.computeIfAbsent(key, k -> new HyperLogLog(sketch.getPrecision())).merge(sketch);
+    }
+
+    private List<StatsDtoResponse> page(List<StatsDtoResponse> stats, StatsQuery query) {
+        int from = Math.min(query.getOffset(), stats.size());
+        int to = query.getLimit() == null ? stats.size() : Math.min(from + query.getLimit(), stats.size());
+        return stats.subList(from, to);
+    }
+
+    /**
+     * Whether unique counts of the query come from sketches: when asked for, or when raw hits of its
+     * start are past retention and exact counts are no longer possible.
+     */
+    private boolean isApproximate(StatsQuery query) {
+        return query.isUnique() && (isApproximate(query.getApproximate()) || isPastRawRetention(query.getStart()));
+    }
+
+    private boolean isApproximate(Boolean approximate) {
+        return approximate == null ? approximateByDefault : approximate;
+    }
+
+    private boolean isPastRawRetention(LocalDateTime from) {
+        Optional<LocalDateTime> cutoff = retentionPolicy.getRawCutoff();
+        return storageEngine.hasRollups() && cutoff.isPresent() && from.isBefore(cutoff.get());
     }
 }
@@ -0,0 +1,89 @@
+package ru.practicum.service;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import ru.practicum.model.Hit;
+import ru.practicum.sketch.SpaceSaving;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps an hourly Space-Saving summary of the most hit uris per app, so that top-N queries only
+ * need exact counts for a short list of candidates. Hours before the first full hour seen by this
+ * instance, or older than the retention, are not covered.
+ */
+@Component
+@Slf4j
+public class TopUriTracker implements HitListener {
+    private final Map<BucketKey, SpaceSaving> buckets = new ConcurrentHashMap<>();
+    private final LocalDateTime trackedSince = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS).plusHours(1);
+    private final int capacity;
+    private final int retentionHours;
+
+    public TopUriTracker(@Value("${ewm-stats-service.top.capacity:1000}") int capacity,
+                         @Value("${ewm-stats-service.top.retention-hours:48}") int retentionHours) {
+        this.capacity = capacity;
+        this.retentionHours = retentionHours;
+    }
+
+    @Override
+    public void onHits(List<Hit> hits) {
+        Map<BucketKey, Map<Long, Long>> counters = new HashMap<>();
+        for (Hit hit : hits) {
+            BucketKey key = new BucketKey(hit.getApp().getId(), hit.getTimestamp().truncatedTo(ChronoUnit.HOURS));
+            counters.computeIfAbsent(key, k -> new HashMap<>()).merge(hit.getUri().getId(), 1L, Long::sum);
+        }
+        counters.forEach((key, uris) -> {
+            SpaceSaving summary = buckets.computeIfAbsent(key, k -> new SpaceSaving(capacity));
+            uris.forEach(summary::offer);
+        });
+    }
+
+    /**
+     * @return ids of the uris most likely to be the top ones in the hours overlapping the window,
+     * or empty if the window is not covered by the tracked hours
+     */
+    public Optional<List<Long>> getCandidates(long appId, LocalDateTime start, LocalDateTime end, int count) {
+        LocalDateTime first = start.truncatedTo(ChronoUnit.HOURS);
+        LocalDateTime last = end.truncatedTo(ChronoUnit.HOURS);
+        if (first.isBefore(trackedSince) || first.isBefore(oldestRetained())) {
+            return Optional.empty();
+        }
+        SpaceSaving merged = new SpaceSaving(capacity);
+        for (LocalDateTime hour = first; !hour.isAfter(last); hour = hour.plusHours(1)) {
+            SpaceSaving summary = buckets.get(new BucketKey(appId, hour));
+            if (summary != null) {
+                merged.merge(summary);
+            }
+        }
+        return Optional.of(merged.top(count).stream()
+                .map(SpaceSaving.Entry::getItem)
+                .collect(Collectors.toList()));
+    }
+
+    @Scheduled(cron = "0 0 * * * *")
+    public void evict() {
+        LocalDateTime oldest = oldestRetained();
+        buckets.keySet().removeIf(key -> key.hour.isBefore(oldest));
+        log.info("Top uri summaries kept for {} app hours", buckets.size());
+    }
+
+    private LocalDateTime oldestRetained() {
+        return LocalDateTime.now().truncatedTo(ChronoUnit.HOURS).minusHours(retentionHours - 1L);
+    }
+
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    private static class BucketKey {
+        private final long appId;
+        private final LocalDateTime hour;
+    }
+}
@@ -0,0 +1,54 @@
+package ru.practicum.sketch;
+
+import lombok.experimental.UtilityClass;
+import ru.practicum.IpAddresses;
+
+@UtilityClass
+public class Hashing {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long SEED = 0x9e3779b97f4a7c15L;
+
+    public static long hash64(CharSequence value) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return mix(hash);
+    }
+
+    public static long hash64(long value) {
+        return mix(value ^ SEED);
+    }
+
+    /**
+     * Hashes the binary form of an ip address, so that different spellings of one IPv6 address collide.
+     */
+    public static long hashIp(String ip) {
+        long ipv4 = IpAddresses.parseIpv4(ip);
+        if (ipv4 >= 0) {
+            return hash64(ipv4);
+        }
+        byte[] address = new byte[16];
+        if (!IpAddresses.parseIpv6(ip, address)) {
+            return hash64(ip);
+        }
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < 8; i++) {
+            high = high << 8 | (address[i] & 0xff);
+            low = low << 8 | (address[i + 8] & 0xff);
+        }
+        return hash64(high ^ hash64(low));
+    }
+
+    public static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb93fe53b87ceL;
+        value ^= value >>> 33;
+        return value;
+    }
+}
@@ -0,0 +1,138 @@
+package ru.practicum.sketch;
+
+/**
+ * Mergeable distinct-count sketch with {@code 2^precision} one-byte registers.
+ * The relative standard error of an estimate is {@code 1.04 / sqrt(2^precision)}.
+ * <p>
+ * A sketch is serialized as its precision followed by every register, or, while fewer than a third of
+ * the registers are set, as its precision with the high bit set followed by a 3-byte entry of
+ * {@code index << 6 | rank} per set register, so sketches of a few visitors stay a few bytes long.
+ */
+public class HyperLogLog {
+    private static final int MIN_PRECISION = 4;
+    private static final int MAX_PRECISION = 18;
+    private static final int SPARSE = 0x80;
+    private static final int SPARSE_ENTRY_SIZE = 3;
+    private static final int RANK_BITS = 6;
+    private final int precision;
+    private final byte[] registers;
+
+    public HyperLogLog(int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("HyperLogLog precision must be between " + MIN_PRECISION +
+                    " and " + MAX_PRECISION);
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    public static HyperLogLog fromBytes(byte[] bytes) {
+        int header = bytes[0] & 0xff;
+        HyperLogLog sketch = new HyperLogLog(header & ~SPARSE);
+        if ((header & SPARSE) == 0) {
+            if (bytes.length != sketch.registers.length + 1) {
+                throw new IllegalStateException("Corrupted HyperLogLog sketch of length " + bytes.length);
+            }
+            System.arraycopy(bytes, 1, sketch.registers, 0, sketch.registers.length);
+            return sketch;
+        }
+        if ((bytes.length - 1) % SPARSE_ENTRY_SIZE != 0) {
+            throw new IllegalStateException("Corrupted sparse HyperLogLog sketch of length " + bytes.length);
+        }
+        for (int i = 1; i < bytes.length; i += SPARSE_ENTRY_SIZE) {
+            int entry = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | bytes[i + 2] & 0xff;
+            int index = entry >>> RANK_BITS;
+            if (index >= sketch.registers.length) {
+                throw new IllegalStateException("Corrupted sparse HyperLogLog sketch, register " + index);
+            }
+            sketch.registers[index] = (byte) (entry & ((1 << RANK_BITS) - 1));
+        }
+        return sketch;
+    }
+
+    public static double relativeError(int precision) {
+        return 1.04 / Math.sqrt(1 << precision);
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    public void add(long hash) {
+        int index = (int) (hash >>> (Long.SIZE - precision));
+        long rest = (hash << precision) | (1L << (precision - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+        if (registers[index] < rank) {
+            registers[index] = rank;
+        }
+    }
+
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalStateException("Cannot merge HyperLogLog sketches of precision " + precision +
+                    " and " + other.precision);
+        }
+        for (int i = 0; i < registers.length; i++) {
+            if (registers[i] < other.registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += Math.scalb(1.0, -register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double estimate = alpha(m) * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    public byte[] toBytes() {
+        int set = 0;
+        for (byte register : registers) {
+            if (register != 0) {
+                set++;
+            }
+        }
+        if (set * SPARSE_ENTRY_SIZE >= registers.length) {
+            byte[] bytes = new byte[registers.length + 1];
+            bytes[0] = (byte) precision;
+            System.arraycopy(registers, 0, bytes, 1, registers.length);
+            return bytes;
+        }
+        byte[] bytes = new byte[set * SPARSE_ENTRY_SIZE + 1];
+        bytes[0] = (byte) (precision | SPARSE);
+        int position = 1;
+        for (int index = 0; index < registers.length; index++) {
+            if (registers[index] != 0) {
+                int entry = index << RANK_BITS | registers[index];
+                bytes[position++] = (byte) (entry >>> 16);
+                bytes[position++] = (byte) (entry >>> 8);
+                bytes[position++] = (byte) entry;
+            }
+        }
+        return bytes;
+    }
+
+    private static double alpha(int m) {
+        switch (m) {
+            case 16:
+                return 0.673;
+            case 32:
+                return 0.697;
+            case 64:
+                return 0.709;
+            default:
+                return 0.7213 / (1 + 1.079 / m);
+        }
+    }
+}
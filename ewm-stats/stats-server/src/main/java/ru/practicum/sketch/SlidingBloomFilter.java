@@ -0,0 +1,103 @@
+package ru.practicum.sketch;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent Bloom filter over a sliding time window, split into {@code slices} generations of
+ * {@code window / slices} each. An item is reported as seen if any generation of the window holds
+ * it, so items are remembered for at least {@code window - window / slices} and at most
+ * {@code window}; expired generations are cleared lazily when their slot is reused.
+ */
+public class SlidingBloomFilter {
+    private final Slice[] slices;
+    private final long sliceMillis;
+    private final int bits;
+    private final int hashes;
+
+    /**
+     * @param bits bits per generation, rounded up to a multiple of 64
+     */
+    public SlidingBloomFilter(long windowMillis, int slices, int bits, int hashes) {
+        if (slices < 1 || hashes < 1 || bits < Long.SIZE || windowMillis < slices) {
+            throw new IllegalArgumentException("Invalid sliding Bloom filter configuration");
+        }
+        this.slices = new Slice[slices];
+        this.sliceMillis = windowMillis / slices;
+        this.bits = (bits + Long.SIZE - 1) / Long.SIZE * Long.SIZE;
+        this.hashes = hashes;
+        for (int i = 0; i < slices; i++) {
+            this.slices[i] = new Slice(this.bits / Long.SIZE);
+        }
+    }
+
+    /**
+     * Records the item at {@code nowMillis}.
+     *
+     * @return whether the item was probably seen within the window already
+     */
+    public boolean put(long hash, long nowMillis) {
+        long generation = nowMillis / sliceMillis;
+        long h1 = hash;
+        long h2 = Hashing.mix(hash) | 1;
+        boolean seen = false;
+        for (int i = 0; i < slices.length && !seen; i++) {
+            Slice slice = slices[(int) Math.floorMod(generation - i, (long) slices.length)];
+            seen = slice.generation == generation - i && slice.contains(h1, h2);
+        }
+        current(generation).add(h1, h2);
+        return seen;
+    }
+
+    private Slice current(long generation) {
+        Slice slice = slices[(int) Math.floorMod(generation, (long) slices.length)];
+        if (slice.generation != generation) {
+            synchronized (slice) {
+                if (slice.generation != generation) {
+                    slice.clear();
+                    slice.generation = generation;
+                }
+            }
+        }
+        return slice;
+    }
+
+    private class Slice {
+        private final AtomicLongArray words;
+        private volatile long generation = Long.MIN_VALUE;
+
+        Slice(int words) {
+            this.words = new AtomicLongArray(words);
+        }
+
+        boolean contains(long h1, long h2) {
+            for (int i = 0; i < hashes; i++) {
+                int bit = index(h1, h2, i);
+                if ((words.get(bit >>> 6) & 1L << bit) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void add(long h1, long h2) {
+            for (int i = 0; i < hashes; i++) {
+                int bit = index(h1, h2, i);
+                long mask = 1L << bit;
+                long word = words.get(bit >>> 6);
+                while ((word & mask) == 0 && !words.compareAndSet(bit >>> 6, word, word | mask)) {
+                    word = words.get(bit >>> 6);
+                }
+            }
+        }
+
+        void clear() {
+            for (int i = 0; i < words.length(); i++) {
+                words.set(i, 0);
+            }
+        }
+
+        private int index(long h1, long h2, int i) {
+            return (int) Long.remainderUnsigned(h1 + i * h2, bits);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package ru.practicum.sketch;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.*;
+
+/**
+ * Space-Saving heavy hitters summary over {@code long} items. Every item whose true count exceeds
+ * {@code total / capacity} is guaranteed to be monitored; a monitored count overestimates the true
+ * count by at most its {@code error}.
+ */
+public class SpaceSaving {
+    private final int capacity;
+    private final long[] items;
+    private final long[] counts;
+    private final long[] errors;
+    private final Map<Long, Integer> positions;
+    private int size;
+
+    public SpaceSaving(int capacity) {
+        this.capacity = capacity;
+        this.items = new long[capacity];
+        this.counts = new long[capacity];
+        this.errors = new long[capacity];
+        this.positions = new HashMap<>(capacity * 2);
+    }
+
+    public synchronized void offer(long item, long count) {
+        offer(item, count, 0);
+    }
+
+    public void merge(SpaceSaving other) {
+        for (Entry entry : other.entries()) {
+            synchronized (this) {
+                offer(entry.getItem(), entry.getCount(), entry.getError());
+            }
+        }
+    }
+
+    public List<Entry> top(int limit) {
+        List<Entry> entries = entries();
+        entries.sort(Comparator.comparingLong(Entry::getCount).reversed());
+        return entries.subList(0, Math.min(limit, entries.size()));
+    }
+
+    public synchronized List<Entry> entries() {
+        List<Entry> entries = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            entries.add(new Entry(items[i], counts[i], errors[i]));
+        }
+        return entries;
+    }
+
+    private void offer(long item, long count, long error) {
+        Integer position = positions.get(item);
+        if (position != null) {
+            counts[position] += count;
+            errors[position] += error;
+            siftDown(position);
+        } else if (size < capacity) {
+            set(size, item, count, error);
+            siftUp(size++);
+        } else {
+            long min = counts[0];
+            positions.remove(items[0]);
+            set(0, item, min + count, min + error);
+            siftDown(0);
+        }
+    }
+
+    private void set(int position, long item, long count, long error) {
+        items[position] = item;
+        counts[position] = count;
+        errors[position] = error;
+        positions.put(item, position);
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (counts[parent] <= counts[position]) {
+                return;
+            }
+            swap(position, parent);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position) {
+        while (true) {
+            int smallest = position;
+            int left = 2 * position + 1;
+            int right = left + 1;
+            if (left < size && counts[left] < counts[smallest]) {
+                smallest = left;
+            }
+            if (right < size && counts[right] < counts[smallest]) {
+                smallest = right;
+            }
+            if (smallest == position) {
+                return;
+            }
+            swap(position, smallest);
+            position = smallest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        long item = items[a];
+        long count = counts[a];
+        long error = errors[a];
+        set(a, items[b], counts[b], errors[b]);
+        set(b, item, count, error);
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Entry {
+        private final long item;
+        private final long count;
+        private final long error;
+    }
+}
@@ -0,0 +1,82 @@
+package ru.practicum.storage;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.practicum.model.App;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide app name to id cache. A missing app is inserted in its own transaction, so the id
+ * never refers to a row that may still be rolled back, and {@code on conflict} on the unique
+ * name makes concurrent inserts from several instances resolve to the same row. Apps are resolved
+ * before the caller opens its own transaction, so an insert never waits for a second connection
+ * while the caller holds one.
+ */
+@Repository
+@ConditionalOnProperty(name = "ewm-stats-service.storage.engine", havingValue = "postgres", matchIfMissing = true)
+@RequiredArgsConstructor
+public class AppDictionary {
+    private static final String SELECT_APP = "select id from apps where name = ?";
+    private static final String INSERT_APP = "insert into apps (name) values (?) on conflict (name) do nothing";
+    private final JdbcTemplate jdbcTemplate;
+    private final PlatformTransactionManager transactionManager;
+    private final Map<String, Long> ids = new ConcurrentHashMap<>();
+
+    public Map<String, App> get(Collection<String> names) {
+        Map<String, App> result = new HashMap<>();
+        for (String name : names) {
+            result.put(name, App.builder()
+                    .id(getId(name))
+                    .name(name)
+                    .build());
+        }
+        return result;
+    }
+
+    public Long getId(String name) {
+        Long id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        id = findOrCreate(name);
+        ids.putIfAbsent(name, id);
+        return id;
+    }
+
+    public Optional<Long> findId(String name) {
+        Long id = ids.get(name);
+        if (id != null) {
+            return Optional.of(id);
+        }
+        List<Long> found = jdbcTemplate.queryForList(SELECT_APP, Long.class, name);
+        if (found.isEmpty()) {
+            return Optional.empty();
+        }
+        ids.putIfAbsent(name, found.get(0));
+        return Optional.of(found.get(0));
+    }
+
+    private Long findOrCreate(String name) {
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        transaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        return transaction.execute(status -> {
+            List<Long> found = jdbcTemplate.queryForList(SELECT_APP, Long.class, name);
+            if (!found.isEmpty()) {
+                return found.get(0);
+            }
+            jdbcTemplate.update(INSERT_APP, name);
+            return jdbcTemplate.queryForObject(SELECT_APP, Long.class, name);
+        });
+    }
+}
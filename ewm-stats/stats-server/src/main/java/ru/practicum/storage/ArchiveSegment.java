@@ -0,0 +1,389 @@
+package ru.practicum.storage;
+
+import ru.practicum.IpAddresses;
+import ru.practicum.model.AppUri;
+import ru.practicum.model.Hit;
+import ru.practicum.sketch.Hashing;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Immutable file with archived hits of one day, stored column by column and key by key.
+ * <p>
+ * The file holds a magic number, a version, the day start and the first and last second of its hits
+ * as epoch seconds, the number of rows and keys, a deflated key block preceded by its raw and
+ * compressed length, and a data block preceded by its length. Every key holds its app and uri, row
+ * count, first and last second, and the offset and compressed and raw length of two deflated columns
+ * in the data block:
+ * <ul>
+ *     <li>seconds: timestamps in ascending order as varint deltas, the first one from the day start;</li>
+ *     <li>ips: an IPv4 address as the varint of {@code address << 1}, or {@code 1} followed by the
+ *     8-byte {@link Hashing#hashIp} of an IPv6 address.</li>
+ * </ul>
+ * Only the keys a scan selects are inflated, straight from the mapped file, and the ip column only
+ * when it is asked for. Visitors are read back as {@link Hashing#hashIp} values, the same identity
+ * the sketches use.
+ */
+public class ArchiveSegment {
+    private static final int MAGIC = 0x45574d41;
+    private static final byte VERSION = 2;
+    private static final long SECONDS_PER_DAY = 86400;
+    private final Path path;
+    private final long dayStart;
+    private final long firstSecond;
+    private final long lastSecond;
+    private final int rows;
+    private final List<Key> keys;
+    private final ByteBuffer data;
+
+    private ArchiveSegment(Path path, MappedByteBuffer buffer) throws IOException {
+        this.path = path;
+        if (buffer.getInt() != MAGIC || buffer.get() != VERSION) {
+            throw new IOException("Not an archive segment: " + path);
+        }
+        dayStart = buffer.getLong();
+        firstSecond = buffer.getLong();
+        lastSecond = buffer.getLong();
+        rows = buffer.getInt();
+        int keyCount = buffer.getInt();
+        int keysLength = buffer.getInt();
+        DataInputStream keyStream = new DataInputStream(new ByteArrayInputStream(inflate(block(buffer), keysLength)));
+        keys = new ArrayList<>(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            keys.add(new Key(new AppUri(keyStream.readUTF(), keyStream.readUTF()), keyStream.readInt(),
+                    keyStream.readLong(), keyStream.readLong(), Column.read(keyStream), Column.read(keyStream)));
+        }
+        data = block(buffer);
+    }
+
+    public static ArchiveSegment open(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new ArchiveSegment(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Visits every archived hit within {@code [from, to)} epoch seconds.
+     *
+     * @param app     app to visit, all apps when null
+     * @param uris    uris to visit, all uris when empty
+     * @param withIps whether the ip column is decoded; visitors get {@code 0} otherwise
+     */
+    public void scan(long from, long to, String app, Set<String> uris, boolean withIps, Visitor visitor) {
+        if (to <= firstSecond || from > lastSecond) {
+            return;
+        }
+        for (Key key : keys) {
+            if (to <= key.firstSecond || from > key.lastSecond ||
+                    app != null && !app.equals(key.appUri.getApp()) ||
+                    !uris.isEmpty() && !uris.contains(key.appUri.getUri())) {
+                continue;
+            }
+            Cursor secondCursor = new Cursor(key.seconds.inflate(data));
+            Cursor ipCursor = withIps ? new Cursor(key.ips.inflate(data)) : null;
+            long second = dayStart;
+            for (int row = 0; row < key.rows; row++) {
+                second += secondCursor.varint();
+                long ip = withIps ? ipCursor.ip() : 0;
+                if (second >= to) {
+                    break;
+                }
+                if (second >= from) {
+                    visitor.visit(key.appUri, second, ip);
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer block(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        ByteBuffer block = buffer.slice();
+        block.limit(length);
+        buffer.position(buffer.position() + length);
+        return block;
+    }
+
+    private static byte[] inflate(ByteBuffer block, int length) {
+        byte[] bytes = new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(block);
+            int inflated = 0;
+            while (inflated < length && !inflater.finished()) {
+                int count = inflater.inflate(bytes, inflated, length - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (inflated != length) {
+                throw new IllegalStateException("Archive block is truncated");
+            }
+            return bytes;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Archive block is corrupted", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 4 + 64);
+            byte[] chunk = new byte[8192];
+            while (!deflater.finished()) {
+                compressed.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public interface Visitor {
+        void visit(AppUri appUri, long second, long ip);
+    }
+
+    private static class Key {
+        private final AppUri appUri;
+        private final int rows;
+        private final long firstSecond;
+        private final long lastSecond;
+        private final Column seconds;
+        private final Column ips;
+
+        private Key(AppUri appUri, int rows, long firstSecond, long lastSecond, Column seconds, Column ips) {
+            this.appUri = appUri;
+            this.rows = rows;
+            this.firstSecond = firstSecond;
+            this.lastSecond = lastSecond;
+            this.seconds = seconds;
+            this.ips = ips;
+        }
+    }
+
+    /**
+     * Deflated column of one key in the data block.
+     */
+    private static class Column {
+        private final int offset;
+        private final int compressedLength;
+        private final int rawLength;
+
+        private Column(int offset, int compressedLength, int rawLength) {
+            this.offset = offset;
+            this.compressedLength = compressedLength;
+            this.rawLength = rawLength;
+        }
+
+        static Column read(DataInputStream in) throws IOException {
+            return new Column(in.readInt(), in.readInt(), in.readInt());
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(offset);
+            out.writeInt(compressedLength);
+            out.writeInt(rawLength);
+        }
+
+        byte[] inflate(ByteBuffer data) {
+            ByteBuffer block = data.duplicate();
+            block.position(offset).limit(offset + compressedLength);
+            return ArchiveSegment.inflate(block.slice(), rawLength);
+        }
+    }
+
+    private static class Cursor {
+        private final byte[] bytes;
+        private int position;
+
+        private Cursor(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        long varint() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte next = bytes[position++];
+                value |= (long) (next & 0x7f) << shift;
+                if (next >= 0) {
+                    return value;
+                }
+            }
+        }
+
+        long ip() {
+            long value = varint();
+            if ((value & 1) == 0) {
+                return Hashing.hash64(value >>> 1);
+            }
+            long hash = 0;
+            for (int i = 0; i < Long.BYTES; i++) {
+                hash = hash << 8 | (bytes[position++] & 0xff);
+            }
+            return hash;
+        }
+    }
+
+    /**
+     * Builds a segment from hits of one day that arrive ordered by app, uri and timestamp. Only the
+     * columns of the current key are kept raw; finished keys are kept deflated.
+     */
+    public static class Writer {
+        private final long dayStart;
+        private final List<Key> keys = new ArrayList<>();
+        private final Set<AppUri> written = new HashSet<>();
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream seconds = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream ips = new ByteArrayOutputStream();
+        private AppUri current;
+        private int currentRows;
+        private long currentFirst;
+        private long previous;
+        private long firstSecond = Long.MAX_VALUE;
+        private long lastSecond = Long.MIN_VALUE;
+        private int rows;
+
+        public Writer(LocalDate day) {
+            this.dayStart = day.atStartOfDay().toEpochSecond(ZoneOffset.UTC);
+        }
+
+        public void add(Hit hit) {
+            AppUri appUri = new AppUri(hit.getApp().getName(), hit.getUri().getPath());
+            long second = hit.getTimestamp().toEpochSecond(ZoneOffset.UTC);
+            if (second < dayStart || second >= dayStart + SECONDS_PER_DAY) {
+                throw new IllegalArgumentException("Hit at " + hit.getTimestamp() + " is outside the segment day");
+            }
+            if (!appUri.equals(current)) {
+                finishKey();
+                if (!written.add(appUri)) {
+                    throw new IllegalArgumentException("Hits are not ordered by app and uri");
+                }
+                current = appUri;
+                currentFirst = second;
+                previous = dayStart;
+            }
+            if (second < previous) {
+                throw new IllegalArgumentException("Hits are not ordered by timestamp");
+            }
+            writeVarint(seconds, second - previous);
+            previous = second;
+            long ipv4 = IpAddresses.parseIpv4(hit.getIp());
+            if (ipv4 >= 0) {
+                writeVarint(ips, ipv4 << 1);
+            } else {
+                writeVarint(ips, 1);
+                long hash = Hashing.hashIp(hit.getIp());
+                for (int shift = Long.SIZE - 8; shift >= 0; shift -= 8) {
+                    ips.write((int) (hash >>> shift));
+                }
+            }
+            firstSecond = Math.min(firstSecond, second);
+            lastSecond = Math.max(lastSecond, second);
+            currentRows++;
+            rows++;
+        }
+
+        public int getRows() {
+            return rows;
+        }
+
+        /**
+         * Writes the segment to a new file at {@code path} and syncs it; the caller moves it into place
+         * once the segment is known to be valid.
+         */
+        public void write(Path path) {
+            finishKey();
+            try {
+                ByteArrayOutputStream keyBytes = new ByteArrayOutputStream();
+                DataOutputStream keyStream = new DataOutputStream(keyBytes);
+                for (Key key : keys) {
+                    keyStream.writeUTF(key.appUri.getApp());
+                    keyStream.writeUTF(key.appUri.getUri());
+                    keyStream.writeInt(key.rows);
+                    keyStream.writeLong(key.firstSecond);
+                    keyStream.writeLong(key.lastSecond);
+                    key.seconds.write(keyStream);
+                    key.ips.write(keyStream);
+                }
+                keyStream.flush();
+                byte[] rawKeys = keyBytes.toByteArray();
+                byte[] compressedKeys = deflate(rawKeys);
+                try (FileOutputStream file = new FileOutputStream(path.toFile());
+                     DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+                    out.writeInt(MAGIC);
+                    out.writeByte(VERSION);
+                    out.writeLong(dayStart);
+                    out.writeLong(firstSecond);
+                    out.writeLong(lastSecond);
+                    out.writeInt(rows);
+                    out.writeInt(keys.size());
+                    out.writeInt(rawKeys.length);
+                    out.writeInt(compressedKeys.length);
+                    out.write(compressedKeys);
+                    out.writeInt(data.size());
+                    data.writeTo(out);
+                    out.flush();
+                    file.getFD().sync();
+                }
+            } catch (IOException e) {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void finishKey() {
+            if (current != null && currentRows > 0) {
+                keys.add(new Key(current, currentRows, currentFirst, previous, appendColumn(seconds),
+                        appendColumn(ips)));
+            }
+            current = null;
+            currentRows = 0;
+        }
+
+        private Column appendColumn(ByteArrayOutputStream raw) {
+            byte[] compressed = deflate(raw.toByteArray());
+            Column column = new Column(data.size(), compressed.length, raw.size());
+            data.write(compressed, 0, compressed.length);
+            raw.reset();
+            return column;
+        }
+
+        private static void writeVarint(ByteArrayOutputStream out, long value) {
+            while ((value & ~0x7fL) != 0) {
+                out.write((int) (value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package ru.practicum.storage;
+
+import lombok.RequiredArgsConstructor;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import ru.practicum.StatsDtoRequest;
+import ru.practicum.model.App;
+import ru.practicum.model.Hit;
+import ru.practicum.model.Uri;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Unlogged staging tables that hit dumps are copied into with {@code COPY FROM STDIN} before they
+ * are resolved against the dictionaries and moved into {@code hits}.
+ */
+@Repository
+@ConditionalOnProperty(name = "ewm-stats-service.storage.engine", havingValue = "postgres", matchIfMissing = true)
+@RequiredArgsConstructor
+public class HitImportStorage {
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private final JdbcTemplate jdbcTemplate;
+
+    public String createStaging() {
+        String table = "hits_import_" + UUID.randomUUID().toString().replace("-", "");
+        jdbcTemplate.execute("create unlogged table " + table + " (" +
+                "app VARCHAR(128) NOT NULL, " +
+                "uri VARCHAR(4000) NOT NULL, " +
+                "ip INET NOT NULL, " +
+                "timestamp TIMESTAMP WITHOUT TIME ZONE NOT NULL)");
+        return table;
+    }
+
+    public void dropStaging(String table) {
+        jdbcTemplate.execute("drop table if exists " + table);
+    }
+
+    /**
+     * Copies {@code app,uri,ip,timestamp} CSV rows as they are.
+     *
+     * @return number of rows copied
+     */
+    public long copyCsv(String table, InputStream csv, boolean header) {
+        String sql = "copy " + table + " (app, uri, ip, timestamp) from stdin with (format csv, header " +
+                header + ")";
+        return jdbcTemplate.execute((ConnectionCallback<Long>) connection -> {
+            try {
+                return connection.unwrap(PGConnection.class).getCopyAPI().copyIn(sql, csv);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * @return number of rows copied
+     */
+    public long copyRequests(String table, Iterator<StatsDtoRequest> requests) {
+        String sql = "copy " + table + " (app, uri, ip, timestamp) from stdin with (format csv)";
+        return jdbcTemplate.execute((ConnectionCallback<Long>) connection -> {
+            long rows = 0;
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new PGCopyOutputStream(connection.unwrap(PGConnection.class), sql), StandardCharsets.UTF_8))) {
+                while (requests.hasNext()) {
+                    StatsDtoRequest request = requests.next();
+                    writer.write(csv(request.getApp()));
+                    writer.write(',');
+                    writer.write(csv(request.getUri()));
+                    writer.write(',');
+                    writer.write(csv(request.getIp()));
+                    writer.write(',');
+                    writer.write(request.getTimestamp() == null ? "" : request.getTimestamp().format(FORMAT));
+                    writer.write('\n');
+                    rows++;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return rows;
+        });
+    }
+
+    public List<String> findApps(String table) {
+        return jdbcTemplate.queryForList("select distinct app from " + table, String.class);
+    }
+
+    public void createUris(String table) {
+        jdbcTemplate.update("insert into uris (uri) select distinct uri from " + table + " order by uri " +
+                "on conflict (md5(uri)) do nothing");
+    }
+
+    /**
+     * Moves staged rows into {@code hits}; apps and uris must already exist.
+     *
+     * @return number of hits inserted
+     */
+    public int moveToHits(String table) {
+        return jdbcTemplate.update("insert into hits (app_id, uri_id, ip, timestamp) " +
+                "select a.id, u.id, s.ip, date_trunc('second', s.timestamp) from " + table + " as s " +
+                "join apps as a on a.name = s.app " +
+                "join uris as u on md5(u.uri) = md5(s.uri) and u.uri = s.uri");
+    }
+
+    /**
+     * Reads staged rows back as hits, in batches of at most {@code batchSize}.
+     */
+    public void scan(String table, int batchSize, Consumer<List<Hit>> consumer) {
+        List<Hit> batch = new ArrayList<>(batchSize);
+        jdbcTemplate.query("select a.id, a.name, u.id, u.uri, host(s.ip), date_trunc('second', s.timestamp) " +
+                "from " + table + " as s " +
+                "join apps as a on a.name = s.app " +
+                "join uris as u on md5(u.uri) = md5(s.uri) and u.uri = s.uri", rs -> {
+                    batch.add(Hit.builder()
+                            .app(new App(rs.getLong(1), rs.getString(2)))
+                            .uri(new Uri(rs.getLong(3), rs.getString(4)))
+                            .ip(rs.getString(5))
+                            .timestamp(rs.getTimestamp(6).toLocalDateTime())
+                            .build());
+                    if (batch.size() == batchSize) {
+                        consumer.accept(new ArrayList<>(batch));
+                        batch.clear();
+                    }
+                });
+        if (!batch.isEmpty()) {
+            consumer.accept(batch);
+        }
+    }
+
+    private static String csv(String value) {
+        if (value == null) {
+            return "";
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+}
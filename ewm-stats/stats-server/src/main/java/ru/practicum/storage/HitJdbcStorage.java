@@ -0,0 +1,258 @@
+package ru.practicum.storage;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+import ru.practicum.StatsDtoResponse;
+import ru.practicum.TimeseriesDtoResponse;
+import ru.practicum.model.App;
+import ru.practicum.model.AppUri;
+import ru.practicum.model.Hit;
+import ru.practicum.model.Interval;
+import ru.practicum.model.StatsQuery;
+import ru.practicum.model.Uri;
+
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+@Repository
+@ConditionalOnProperty(name = "ewm-stats-service.storage.engine", havingValue = "postgres", matchIfMissing = true)
+@RequiredArgsConstructor
+public class HitJdbcStorage {
+    private static final int VIEWS_CHUNK = 1000;
+    private static final String INSERT_HIT = "insert into hits (app_id, uri_id, ip, timestamp) values (?, ?, ?, ?)";
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+
+    @Value("${ewm-stats-service.hits.batch-size:500}")
+    private int batchSize;
+
+    public void saveAll(List<Hit> hits) {
+        jdbcTemplate.getJdbcTemplate().batchUpdate(INSERT_HIT, hits, batchSize, (ps, hit) -> {
+            ps.setLong(1, hit.getApp().getId());
+            ps.setLong(2, hit.getUri().getId());
+            ps.setObject(3, hit.getIp(), Types.OTHER);
+            ps.setTimestamp(4, Timestamp.valueOf(hit.getTimestamp()));
+        });
+    }
+
+    /**
+     * Streams exact unique-ip counts row by row, in descending order.
+     *
+     * @param uriIds uris to count, all uris when empty
+     */
+    public void queryUniq(StatsQuery query, Collection<Long> uriIds, Consumer<StatsDtoResponse> consumer) {
+        queryUniq(query, uriIds, 0, 1, consumer);
+    }
+
+    /**
+     * Same as {@link #queryUniq(StatsQuery, Collection, Consumer)} restricted to uris with
+     * {@code uri_id % shards = shard}.
+     */
+    public void queryUniq(StatsQuery query, Collection<Long> uriIds, int shard, int shards,
+                          Consumer<StatsDtoResponse> consumer) {
+        MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("start", Timestamp.valueOf(query.getStart()))
+                .addValue("end", Timestamp.valueOf(query.getEnd().plusSeconds(1)))
+                .addValue("shard", shard)
+                .addValue("shards", shards);
+        String uriFilter = StatsSql.appFilter(query, params) + StatsSql.uriFilter(uriIds, params) +
+                (shards > 1 ? " and uri_id % :shards = :shard" : "");
+        String sql = "select a.name, u.uri, s.hits from (" +
+                "select app_id, uri_id, count(distinct ip) as hits from hits " +
+                "where timestamp >= :start and timestamp < :end" + uriFilter +
+                " group by app_id, uri_id) as s " +
+                "join apps as a on a.id = s.app_id " +
+                "join uris as u on u.id = s.uri_id " +
+                "order by s.hits desc, a.name, u.uri" + StatsSql.page(query, params);
+        jdbcTemplate.query(sql, params, rs -> {
+            consumer.accept(new StatsDtoResponse(rs.getString(1), rs.getString(2), rs.getLong(3)));
+        });
+    }
+
+    /**
+     * Streams hit and exact unique-ip counts per interval bucket in one pass over raw hits, ordered by
+     * app, uri and bucket.
+     *
+     * @param uriIds uris to count, all uris when empty
+     */
+    public void timeseriesUniq(StatsQuery query, Collection<Long> uriIds, Interval interval,
+                               Consumer<TimeseriesDtoResponse> consumer) {
+        MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("start", Timestamp.valueOf(query.getStart()))
+                .addValue("end", Timestamp.valueOf(query.getEnd().plusSeconds(1)));
+        String uriFilter = StatsSql.appFilter(query, params) + StatsSql.uriFilter(uriIds, params);
+        String sql = "select a.name, u.uri, s.bucket, s.hits, s.uniq from (" +
+                "select date_trunc('" + interval.getDatePart() + "', timestamp) as bucket, app_id, uri_id, " +
+                "count(*) as hits, count(distinct ip) as uniq from hits " +
+                "where timestamp >= :start and timestamp < :end" + uriFilter +
+                " group by 1, 2, 3) as s " +
+                "join apps as a on a.id = s.app_id " +
+                "join uris as u on u.id = s.uri_id " +
+                "order by a.name, u.uri, s.bucket";
+        jdbcTemplate.query(sql, params, rs -> {
+            consumer.accept(new TimeseriesDtoResponse(rs.getString(1), rs.getString(2),
+                    rs.getTimestamp(3).toLocalDateTime(), rs.getLong(4), rs.getLong(5)));
+        });
+    }
+
+    /**
+     * Streams the distinct app, uri and ip triples of the query range.
+     *
+     * @param uriIds uris to scan, all uris when empty
+     */
+    public void scanVisitors(StatsQuery query, Collection<Long> uriIds, BiConsumer<AppUri, String> consumer) {
+        MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("start", Timestamp.valueOf(query.getStart()))
+                .addValue("end", Timestamp.valueOf(query.getEnd().plusSeconds(1)));
+        String uriFilter = StatsSql.appFilter(query, params) + StatsSql.uriFilter(uriIds, params);
+        jdbcTemplate.query("select a.name, u.uri, s.ip from (" +
+                "select distinct app_id, uri_id, host(ip) as ip from hits " +
+                "where timestamp >= :start and timestamp < :end" + uriFilter + ") as s " +
+                "join apps as a on a.id = s.app_id " +
+                "join uris as u on u.id = s.uri_id", params, rs -> {
+                    consumer.accept(new AppUri(rs.getString(1), rs.getString(2)), rs.getString(3));
+                });
+    }
+
+    /**
+     * Counts unique ips per uri, each uri from its own {@code since}.
+     *
+     * @param app app to count, all apps when null
+     */
+    public Map<Long, Long> countViews(String app, Map<Long, LocalDateTime> since) {
+        Map<Long, Long> views = new HashMap<>();
+        forEachChunk(app, since, (params, sinceFilter) -> jdbcTemplate.query("select v.uri_id, " +
+                "count(distinct h.ip) from " + sinceFilter + " group by v.uri_id", params, rs -> {
+                    views.put(rs.getLong(1), rs.getLong(2));
+                }));
+        return views;
+    }
+
+    /**
+     * Streams the distinct uri and ip pairs of {@link #countViews}.
+     */
+    public void scanViewers(String app, Map<Long, LocalDateTime> since, BiConsumer<Long, String> consumer) {
+        forEachChunk(app, since, (params, sinceFilter) -> jdbcTemplate.query("select distinct v.uri_id, " +
+                "host(h.ip) from " + sinceFilter, params, rs -> {
+                    consumer.accept(rs.getLong(1), rs.getString(2));
+                }));
+    }
+
+    /**
+     * Deletes up to {@code chunkSize} hits older than {@code before}.
+     *
+     * @return number of hits deleted
+     */
+    public int deleteBefore(LocalDateTime before, int chunkSize) {
+        return jdbcTemplate.update("delete from hits where (id, timestamp) in (" +
+                "select id, timestamp from hits where timestamp < :before limit :chunk)", new MapSqlParameterSource()
+                .addValue("before", Timestamp.valueOf(before))
+                .addValue("chunk", chunkSize));
+    }
+
+    public Optional<LocalDateTime> findOldest(LocalDateTime before) {
+        Timestamp oldest = jdbcTemplate.queryForObject("select min(timestamp) from hits where timestamp < :before",
+                new MapSqlParameterSource("before", Timestamp.valueOf(before)), Timestamp.class);
+        return Optional.ofNullable(oldest).map(Timestamp::toLocalDateTime);
+    }
+
+    /**
+     * Deletes the hits of {@code [from, to)} and streams them with their app and uri, ordered by app,
+     * uri and timestamp. The delete belongs to the caller's transaction.
+     */
+    public void moveOut(LocalDateTime from, LocalDateTime to, Consumer<Hit> consumer) {
+        MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("from", Timestamp.valueOf(from))
+                .addValue("to", Timestamp.valueOf(to));
+        jdbcTemplate.query("with moved as (" +
+                "delete from hits where timestamp >= :from and timestamp < :to " +
+                "returning app_id, uri_id, ip, timestamp) " +
+                "select m.app_id, a.name, m.uri_id, u.uri, host(m.ip), m.timestamp from moved as m " +
+                "join apps as a on a.id = m.app_id " +
+                "join uris as u on u.id = m.uri_id " +
+                "order by a.name, u.uri, m.timestamp", params, rs -> {
+                    consumer.accept(Hit.builder()
+                            .app(new App(rs.getLong(1), rs.getString(2)))
+                            .uri(new Uri(rs.getLong(3), rs.getString(4)))
+                            .ip(rs.getString(5))
+                            .timestamp(rs.getTimestamp(6).toLocalDateTime())
+                            .build());
+                });
+    }
+
+    /**
+     * Records an archive segment written for hits moved out in the caller's transaction, so that the
+     * segment can be told apart from one whose transaction rolled back.
+     */
+    public void addArchiveSegment(String name, LocalDate day, int hits) {
+        jdbcTemplate.update("insert into archive_segments (name, day, hits, archived_at) " +
+                "values (:name, :day, :hits, :archivedAt)", new MapSqlParameterSource()
+                .addValue("name", name)
+                .addValue("day", Date.valueOf(day))
+                .addValue("hits", hits)
+                .addValue("archivedAt", Timestamp.valueOf(LocalDateTime.now())));
+    }
+
+    /**
+     * Deletes the records of archive segments of days before {@code before}.
+     */
+    public void deleteArchiveSegments(LocalDate before) {
+        jdbcTemplate.update("delete from archive_segments where day < :before",
+                new MapSqlParameterSource("before", Date.valueOf(before)));
+    }
+
+    /**
+     * @return those of the segment names that were recorded by a committed archive transaction
+     */
+    public Set<String> findArchiveSegments(Collection<String> names) {
+        if (names.isEmpty()) {
+            return Collections.emptySet();
+        }
+        return new HashSet<>(jdbcTemplate.queryForList("select name from archive_segments where name in (:names)",
+                new MapSqlParameterSource("names", names), String.class));
+    }
+
+    private void forEachChunk(String app, Map<Long, LocalDateTime> since,
+                              BiConsumer<MapSqlParameterSource, String> query) {
+        List<Map.Entry<Long, LocalDateTime>> entries = new ArrayList<>(since.entrySet());
+        for (int from = 0; from < entries.size(); from += VIEWS_CHUNK) {
+            MapSqlParameterSource params = new MapSqlParameterSource();
+            StringJoiner values = new StringJoiner(", ");
+            for (int i = from; i < Math.min(from + VIEWS_CHUNK, entries.size()); i++) {
+                params.addValue("uri" + i, entries.get(i).getKey());
+                params.addValue("since" + i, Timestamp.valueOf(entries.get(i).getValue()));
+                values.add("(cast(:uri" + i + " as bigint), cast(:since" + i + " as timestamp))");
+            }
+            query.accept(params, "(values " + values + ") as v(uri_id, since) " +
+                    "join hits as h on h.uri_id = v.uri_id and h.timestamp >= v.since" +
+                    StatsSql.appFilter(app, params));
+        }
+    }
+
+    /**
+     * Streams every hit since {@code from} with its app and uri, in no particular order.
+     */
+    public void scan(LocalDateTime from, Consumer<Hit> consumer) {
+        MapSqlParameterSource params = new MapSqlParameterSource("from", Timestamp.valueOf(from));
+        jdbcTemplate.query("select h.app_id, a.name, h.uri_id, u.uri, host(h.ip), h.timestamp from hits as h " +
+                "join apps as a on a.id = h.app_id " +
+                "join uris as u on u.id = h.uri_id " +
+                "where h.timestamp >= :from", params, rs -> {
+                    consumer.accept(Hit.builder()
+                            .app(new App(rs.getLong(1), rs.getString(2)))
+                            .uri(new Uri(rs.getLong(3), rs.getString(4)))
+                            .ip(rs.getString(5))
+                            .timestamp(rs.getTimestamp(6).toLocalDateTime())
+                            .build());
+                });
+    }
+}
@@ -0,0 +1,126 @@
+package ru.practicum.storage;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.experimental.UtilityClass;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a half-open time range into the widest buckets that can be answered from rollup tables
+ * and the unaligned edges that still have to be read from raw hits.
+ */
+@UtilityClass
+public class RangePlan {
+
+    public static List<Segment> split(LocalDateTime from, LocalDateTime to) {
+        return split(from, to, Granularity.values());
+    }
+
+    /**
+     * @param levels granularities that have rollups for this query, finest first
+     */
+    public static List<Segment> split(LocalDateTime from, LocalDateTime to, Granularity... levels) {
+        List<Segment> segments = new ArrayList<>();
+        split(from, to, levels, levels.length - 1, segments);
+        return segments;
+    }
+
+    /**
+     * Splits a range whose older parts only have coarser data left.
+     *
+     * @param zones zones of the timeline, newest first, the last one starting at {@code null}
+     */
+    public static List<Segment> split(LocalDateTime from, LocalDateTime to, List<Zone> zones) {
+        List<Segment> segments = new ArrayList<>();
+        LocalDateTime zoneTo = to;
+        for (Zone zone : zones) {
+            boolean last = zone.getSince() == null || !zone.getSince().isAfter(from);
+            LocalDateTime zoneFrom = last ? from : zone.getSince();
+            if (zoneFrom.isBefore(zoneTo)) {
+                if (zone.isRaw()) {
+                    split(zoneFrom, zoneTo, zone.getLevels(), zone.getLevels().length - 1, segments);
+                } else {
+                    ChronoUnit unit = zone.getLevels()[0].getUnit();
+                    split(floor(zoneFrom, unit), floor(zoneTo, unit), zone.getLevels(), zone.getLevels().length - 1,
+                            segments);
+                }
+            }
+            if (last) {
+                break;
+            }
+            zoneTo = zoneTo.isBefore(zone.getSince()) ? zoneTo : zone.getSince();
+        }
+        return segments;
+    }
+
+    public static LocalDateTime floor(LocalDateTime time, ChronoUnit unit) {
+        return time.truncatedTo(unit);
+    }
+
+    public static LocalDateTime ceil(LocalDateTime time, ChronoUnit unit) {
+        LocalDateTime floor = time.truncatedTo(unit);
+        return floor.equals(time) ? floor : floor.plus(1, unit);
+    }
+
+    private static void split(LocalDateTime from, LocalDateTime to, Granularity[] levels, int level,
+                              List<Segment> segments) {
+        if (!from.isBefore(to)) {
+            return;
+        }
+        if (level < 0) {
+            segments.add(new Segment(null, from, to));
+            return;
+        }
+        Granularity granularity = levels[level];
+        LocalDateTime alignedFrom = ceil(from, granularity.getUnit());
+        LocalDateTime alignedTo = floor(to, granularity.getUnit());
+        if (alignedFrom.isBefore(alignedTo)) {
+            split(from, alignedFrom, levels, level - 1, segments);
+            segments.add(new Segment(granularity, alignedFrom, alignedTo));
+            split(alignedTo, to, levels, level - 1, segments);
+        } else {
+            split(from, to, levels, level - 1, segments);
+        }
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public enum Granularity {
+        MINUTE("hits_minute", ChronoUnit.MINUTES, "minute"),
+        HOUR("hits_hour", ChronoUnit.HOURS, "hour"),
+        DAY("hits_day", ChronoUnit.DAYS, "day");
+
+        private final String table;
+        private final ChronoUnit unit;
+        private final String datePart;
+    }
+
+    /**
+     * Part of the timeline from {@code since} on with the rollups listed in {@code levels}, finest
+     * first. Without raw hits the zone is answered at the resolution of its finest rollup: a bucket
+     * counts if it starts within the range, which keeps adjacent ranges disjoint.
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class Zone {
+        private final LocalDateTime since;
+        private final boolean raw;
+        private final Granularity[] levels;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Segment {
+        private final Granularity granularity;
+        private final LocalDateTime from;
+        private final LocalDateTime to;
+
+        public boolean isRaw() {
+            return granularity == null;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package ru.practicum.storage;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Retention tiers of stats history: raw hits are kept for {@code rawDays}, minute rollups for
+ * {@code minuteDays} and hour rollups and sketches for {@code hourDays}; day rollups are kept
+ * forever. Zero keeps a tier forever. Cutoffs fall on day boundaries, so each tier ends at the
+ * start of a day.
+ * <p>
+ * With the archive enabled raw hits are kept longer than {@code archive.after-days}, so they are
+ * archived before they expire, and archived days past the raw retention are deleted too.
+ */
+@Component
+public class RetentionPolicy {
+    private static final RangePlan.Granularity[] ALL = RangePlan.Granularity.values();
+    private static final RangePlan.Granularity[] HOUR_AND_DAY = {RangePlan.Granularity.HOUR, RangePlan.Granularity.DAY};
+    private static final RangePlan.Granularity[] DAY = {RangePlan.Granularity.DAY};
+    private static final RangePlan.Granularity[] HOUR = {RangePlan.Granularity.HOUR};
+    private final int rawDays;
+    private final int minuteDays;
+    private final int hourDays;
+
+    public RetentionPolicy(@Value("${ewm-stats-service.retention.raw-days:" +
+                                   "${ewm-stats-service.partitions.retention-days:0}}") int rawDays,
+                           @Value("${ewm-stats-service.retention.minute-days:0}") int minuteDays,
+                           @Value("${ewm-stats-service.retention.hour-days:0}") int hourDays,
+                           @Value("${ewm-stats-service.archive.enabled:false}") boolean archiveEnabled,
+                           @Value("${ewm-stats-service.archive.after-days:30}") int archiveAfterDays) {
+        if (outlives(rawDays, minuteDays) || outlives(minuteDays, hourDays) || outlives(rawDays, hourDays)) {
+            throw new IllegalArgumentException("A finer retention tier must not be kept longer than a coarser one");
+        }
+        if (archiveEnabled && rawDays > 0 && rawDays <= archiveAfterDays) {
+            throw new IllegalArgumentException("Raw hits must be kept longer than archive.after-days, " +
+                    "or they expire before they are archived");
+        }
+        this.rawDays = rawDays;
+        this.minuteDays = minuteDays;
+        this.hourDays = hourDays;
+    }
+
+    public Optional<LocalDateTime> getRawCutoff() {
+        return cutoff(rawDays);
+    }
+
+    public Optional<LocalDateTime> getMinuteCutoff() {
+        return cutoff(minuteDays);
+    }
+
+    public Optional<LocalDateTime> getHourCutoff() {
+        return cutoff(hourDays);
+    }
+
+    /**
+     * Zones of raw hits and count rollups, newest first.
+     */
+    public List<RangePlan.Zone> getCountZones() {
+        List<RangePlan.Zone> zones = new ArrayList<>();
+        if (add(zones, getRawCutoff(), true, ALL) && add(zones, getMinuteCutoff(), false, ALL) &&
+                add(zones, getHourCutoff(), false, HOUR_AND_DAY)) {
+            add(zones, Optional.empty(), false, DAY);
+        }
+        return zones;
+    }
+
+    /**
+     * Zones of raw hits and sketches, newest first; day sketches exist only where hour sketches
+     * have been compacted.
+     */
+    public List<RangePlan.Zone> getSketchZones() {
+        List<RangePlan.Zone> zones = new ArrayList<>();
+        if (add(zones, getRawCutoff(), true, HOUR) && add(zones, getHourCutoff(), false, HOUR)) {
+            add(zones, Optional.empty(), false, DAY);
+        }
+        return zones;
+    }
+
+    /**
+     * @return whether older zones follow
+     */
+    private static boolean add(List<RangePlan.Zone> zones, Optional<LocalDateTime> since, boolean raw,
+                               RangePlan.Granularity[] levels) {
+        zones.add(new RangePlan.Zone(since.orElse(null), raw, levels));
+        return since.isPresent();
+    }
+
+    private static Optional<LocalDateTime> cutoff(int days) {
+        return days > 0 ? Optional.of(LocalDate.now().minusDays(days).atStartOfDay()) : Optional.empty();
+    }
+
+    private static boolean outlives(int finerDays, int coarserDays) {
+        return coarserDays > 0 && (finerDays == 0 || finerDays > coarserDays);
+    }
+}
@@ -0,0 +1,359 @@
+package ru.practicum.storage;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.practicum.StatsDtoResponse;
+import ru.practicum.TimeseriesDtoResponse;
+import ru.practicum.model.Hit;
+import ru.practicum.model.Interval;
+import ru.practicum.model.StatsQuery;
+
+import javax.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Minute, hour and day rollups of hit counts per app and uri.
+ * <p>
+ * Added hits are counted per minute in memory once their transaction commits, and pending counters
+ * are flushed into every rollup every {@code flushIntervalMs}, or soon after {@code maxPending} of
+ * them are held, so concurrent hits on a busy uri do not queue on its hour and day rows and a row is
+ * rewritten once per flush. Queries add the pending counters that fall into their rollup segments;
+ * counters still pending when the process dies are lost, the raw hits are not.
+ */
+@Repository
+@ConditionalOnProperty(name = "ewm-stats-service.storage.engine", havingValue = "postgres", matchIfMissing = true)
+@Slf4j
+public class RollupStorage {
+    private static final String UPSERT = "insert into %1$s (bucket, app_id, uri_id, hits) values (?, ?, ?, ?) " +
+            "on conflict (bucket, app_id, uri_id) do update set hits = %1$s.hits + excluded.hits";
+    private static final Comparator<RollupKey> KEY_ORDER = Comparator.comparing((RollupKey key) -> key.bucket)
+            .thenComparingLong(key -> key.appId)
+            .thenComparingLong(key -> key.uriId);
+    private final Map<RollupKey, Long> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+    private final RetentionPolicy retentionPolicy;
+    private final TaskScheduler taskScheduler;
+    private final TransactionTemplate transaction;
+    private final int maxPending;
+    private volatile Map<RollupKey, Long> flushing = Collections.emptyMap();
+
+    public RollupStorage(NamedParameterJdbcTemplate jdbcTemplate,
+                         RetentionPolicy retentionPolicy,
+                         TaskScheduler taskScheduler,
+                         PlatformTransactionManager transactionManager,
+                         @Value("${ewm-stats-service.rollups.max-pending:10000}") int maxPending) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.retentionPolicy = retentionPolicy;
+        this.taskScheduler = taskScheduler;
+        this.transaction = new TransactionTemplate(transactionManager);
+        this.transaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Adds the hits to the pending minute counters, once the surrounding transaction commits if there
+     * is one.
+     */
+    public void add(List<Hit> hits) {
+        if (hits.isEmpty()) {
+            return;
+        }
+        boolean deferred = TransactionSynchronizationManager.isSynchronizationActive();
+        Map<RollupKey, Long> counters = deferred ? transactionCounters() : new HashMap<>();
+        for (Hit hit : hits) {
+            RollupKey key = new RollupKey(RangePlan.floor(hit.getTimestamp(), ChronoUnit.MINUTES),
+                    hit.getApp().getId(), hit.getUri().getId());
+            counters.merge(key, 1L, Long::sum);
+        }
+        if (!deferred) {
+            addPending(counters);
+        }
+    }
+
+    /**
+     * Writes the pending counters into every rollup in one transaction. Counters being written stay
+     * visible to queries until the write ends, and are put back if it fails.
+     */
+    @Scheduled(fixedDelayString = "${ewm-stats-service.rollups.flush-interval-ms:1000}")
+    public synchronized void flush() {
+        flushRequested.set(false);
+        Map<RollupKey, Long> minutes = new HashMap<>();
+        for (RollupKey key : pending.keySet()) {
+            Long count = pending.remove(key);
+            if (count != null) {
+                minutes.put(key, count);
+            }
+        }
+        if (minutes.isEmpty()) {
+            return;
+        }
+        flushing = minutes;
+        try {
+            transaction.executeWithoutResult(status -> {
+                for (RangePlan.Granularity granularity : RangePlan.Granularity.values()) {
+                    upsert(granularity, minutes);
+                }
+            });
+        } catch (RuntimeException e) {
+            log.error("Flushing {} rollup counters failed, kept for the next flush: {}", minutes.size(),
+                    e.getMessage());
+            putPending(minutes);
+        } finally {
+            flushing = Collections.emptyMap();
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        flush();
+    }
+
+    /**
+     * Adds the hits of a staging table with {@code app, uri, timestamp} columns to every rollup.
+     */
+    public void addStaged(String stagingTable) {
+        for (RangePlan.Granularity granularity : RangePlan.Granularity.values()) {
+            jdbcTemplate.getJdbcTemplate().update(String.format("insert into %1$s (bucket, app_id, uri_id, hits) " +
+                    "select date_trunc('%2$s', s.timestamp), a.id, u.id, count(*) from %3$s as s " +
+                    "join apps as a on a.name = s.app " +
+                    "join uris as u on md5(u.uri) = md5(s.uri) and u.uri = s.uri " +
+                    "group by 1, 2, 3 order by 1, 2, 3 " +
+                    "on conflict (bucket, app_id, uri_id) do update set hits = %1$s.hits + excluded.hits",
+                    granularity.getTable(), granularity.getDatePart(), stagingTable));
+        }
+    }
+
+    /**
+     * Streams hit counts row by row, in descending order.
+     *
+     * @param uriIds uris to count, all uris when empty
+     */
+    public void query(StatsQuery query, Collection<Long> uriIds, Consumer<StatsDtoResponse> consumer) {
+        MapSqlParameterSource params = new MapSqlParameterSource();
+        StringJoiner union = new StringJoiner(" union all ");
+        String uriFilter = StatsSql.appFilter(query, params) + StatsSql.uriFilter(uriIds, params);
+        List<RangePlan.Segment> segments = RangePlan.split(query.getStart(), query.getEnd().plusSeconds(1),
+                retentionPolicy.getCountZones());
+        for (int i = 0; i < segments.size(); i++) {
+            RangePlan.Segment segment = segments.get(i);
+            params.addValue("from" + i, Timestamp.valueOf(segment.getFrom()));
+            params.addValue("to" + i, Timestamp.valueOf(segment.getTo()));
+            if (segment.isRaw()) {
+                union.add("select app_id, uri_id, count(*) as hits from hits " +
+                        "where timestamp >= :from" + i + " and timestamp < :to" + i + uriFilter +
+                        " group by app_id, uri_id");
+            } else {
+                union.add("select app_id, uri_id, sum(hits) as hits from " + segment.getGranularity().getTable() +
+                        " where bucket >= :from" + i + " and bucket < :to" + i + uriFilter +
+                        " group by app_id, uri_id");
+            }
+        }
+        Map<RollupKey, Long> held = getPending(segments);
+        if (!held.isEmpty()) {
+            union.add("select app_id, uri_id, hits from " + unnest(held, params) + " where true" + uriFilter);
+        }
+        String sql = "select a.name, u.uri, s.hits from (" +
+                "select app_id, uri_id, sum(hits) as hits from (" + union + ") as r group by app_id, uri_id) as s " +
+                "join apps as a on a.id = s.app_id " +
+                "join uris as u on u.id = s.uri_id " +
+                "order by s.hits desc, a.name, u.uri" + StatsSql.page(query, params);
+        jdbcTemplate.query(sql, params, rs -> {
+            consumer.accept(new StatsDtoResponse(rs.getString(1), rs.getString(2), rs.getLong(3)));
+        });
+    }
+
+    /**
+     * Streams hit counts per interval bucket, ordered by app, uri and bucket. Rollups no coarser than
+     * the interval are used where the range allows; where retention left only coarser rollups, their
+     * buckets are reported as they are.
+     *
+     * @param uriIds uris to count, all uris when empty
+     */
+    public void timeseries(StatsQuery query, Collection<Long> uriIds, Interval interval,
+                           Consumer<TimeseriesDtoResponse> consumer) {
+        MapSqlParameterSource params = new MapSqlParameterSource();
+        StringJoiner union = new StringJoiner(" union all ");
+        String uriFilter = StatsSql.appFilter(query, params) + StatsSql.uriFilter(uriIds, params);
+        Duration bucketSize = interval.getUnit().getDuration();
+        List<RangePlan.Zone> zones = new ArrayList<>();
+        for (RangePlan.Zone zone : retentionPolicy.getCountZones()) {
+            RangePlan.Granularity[] levels = Arrays.stream(zone.getLevels())
+                    .filter(granularity -> granularity.getUnit().getDuration().compareTo(bucketSize) <= 0)
+                    .toArray(RangePlan.Granularity[]::new);
+            zones.add(new RangePlan.Zone(zone.getSince(), zone.isRaw(),
+                    levels.length > 0 || zone.isRaw() ? levels : new RangePlan.Granularity[]{zone.getLevels()[0]}));
+        }
+        List<RangePlan.Segment> segments = RangePlan.split(query.getStart(), query.getEnd().plusSeconds(1), zones);
+        String bucket = "date_trunc('" + interval.getDatePart() + "', %s) as bucket";
+        for (int i = 0; i < segments.size(); i++) {
+            RangePlan.Segment segment = segments.get(i);
+            params.addValue("from" + i, Timestamp.valueOf(segment.getFrom()));
+            params.addValue("to" + i, Timestamp.valueOf(segment.getTo()));
+            if (segment.isRaw()) {
+                union.add("select " + String.format(bucket, "timestamp") + ", app_id, uri_id, count(*) as hits " +
+                        "from hits where timestamp >= :from" + i + " and timestamp < :to" + i + uriFilter +
+                        " group by 1, 2, 3");
+            } else {
+                union.add("select " + String.format(bucket, "bucket") + ", app_id, uri_id, sum(hits) as hits " +
+                        "from " + segment.getGranularity().getTable() +
+                        " where bucket >= :from" + i + " and bucket < :to" + i + uriFilter +
+                        " group by 1, 2, 3");
+            }
+        }
+        Map<RollupKey, Long> held = getPending(segments);
+        if (!held.isEmpty()) {
+            union.add("select " + String.format(bucket, "bucket") + ", app_id, uri_id, hits from " +
+                    unnest(held, params) + " where true" + uriFilter);
+        }
+        String sql = "select a.name, u.uri, s.bucket, s.hits from (" +
+                "select bucket, app_id, uri_id, sum(hits) as hits from (" + union + ") as r " +
+                "group by bucket, app_id, uri_id) as s " +
+                "join apps as a on a.id = s.app_id " +
+                "join uris as u on u.id = s.uri_id " +
+                "order by a.name, u.uri, s.bucket";
+        jdbcTemplate.query(sql, params, rs -> {
+            consumer.accept(new TimeseriesDtoResponse(rs.getString(1), rs.getString(2),
+                    rs.getTimestamp(3).toLocalDateTime(), rs.getLong(4), null));
+        });
+    }
+
+    /**
+     * Deletes up to {@code chunkSize} rollup rows older than {@code before}.
+     *
+     * @return number of rows deleted
+     */
+    public int deleteBefore(RangePlan.Granularity granularity, LocalDateTime before, int chunkSize) {
+        return jdbcTemplate.update(String.format("delete from %1$s where (bucket, app_id, uri_id) in (" +
+                        "select bucket, app_id, uri_id from %1$s where bucket < :before limit :chunk)",
+                granularity.getTable()), new MapSqlParameterSource()
+                .addValue("before", Timestamp.valueOf(before))
+                .addValue("chunk", chunkSize));
+    }
+
+    private Map<RollupKey, Long> transactionCounters() {
+        TransactionCounters bound = (TransactionCounters) TransactionSynchronizationManager.getResource(this);
+        if (bound == null) {
+            TransactionCounters created = new TransactionCounters();
+            TransactionSynchronizationManager.bindResource(this, created);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    addPending(created.counters);
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResource(RollupStorage.this);
+                }
+            });
+            bound = created;
+        }
+        return bound.counters;
+    }
+
+    /**
+     * Adds counters to the pending ones. Once {@code maxPending} are held a flush is handed to the
+     * scheduler, never run here: this runs after commit, while the caller still holds its connection.
+     */
+    private void addPending(Map<RollupKey, Long> counters) {
+        putPending(counters);
+        if (pending.size() >= maxPending && flushRequested.compareAndSet(false, true)) {
+            taskScheduler.schedule(this::flush, Instant.now());
+        }
+    }
+
+    private void putPending(Map<RollupKey, Long> counters) {
+        counters.forEach((key, count) -> pending.merge(key, count, Long::sum));
+    }
+
+    private void upsert(RangePlan.Granularity granularity, Map<RollupKey, Long> minutes) {
+        Map<RollupKey, Long> counters = new TreeMap<>(KEY_ORDER);
+        minutes.forEach((key, count) -> counters.merge(new RollupKey(RangePlan.floor(key.bucket,
+                granularity.getUnit()), key.appId, key.uriId), count, Long::sum));
+        jdbcTemplate.getJdbcTemplate().batchUpdate(String.format(UPSERT, granularity.getTable()),
+                new ArrayList<>(counters.entrySet()), counters.size(), (ps, counter) -> {
+                    ps.setTimestamp(1, Timestamp.valueOf(counter.getKey().bucket));
+                    ps.setLong(2, counter.getKey().appId);
+                    ps.setLong(3, counter.getKey().uriId);
+                    ps.setLong(4, counter.getValue());
+                });
+    }
+
+    /**
+     * Pending and flushing counters that fall into the rollup segments, by their bucket in the rollup
+     * of the segment.
+     */
+    private Map<RollupKey, Long> getPending(List<RangePlan.Segment> segments) {
+        Map<RollupKey, Long> held = new HashMap<>();
+        for (Map<RollupKey, Long> counters : List.of(pending, flushing)) {
+            counters.forEach((key, count) -> {
+                for (RangePlan.Segment segment : segments) {
+                    if (!segment.isRaw() && !key.bucket.isBefore(segment.getFrom()) &&
+                            key.bucket.isBefore(segment.getTo())) {
+                        held.merge(new RollupKey(RangePlan.floor(key.bucket, segment.getGranularity().getUnit()),
+                                key.appId, key.uriId), count, Long::sum);
+                    }
+                }
+            });
+        }
+        return held;
+    }
+
+    /**
+     * Binds counters as arrays and returns them as a {@code (bucket, app_id, uri_id, hits)} relation.
+     */
+    private static String unnest(Map<RollupKey, Long> counters, MapSqlParameterSource params) {
+        String[] buckets = new String[counters.size()];
+        long[] appIds = new long[counters.size()];
+        long[] uriIds = new long[counters.size()];
+        long[] hits = new long[counters.size()];
+        int i = 0;
+        for (Map.Entry<RollupKey, Long> counter : counters.entrySet()) {
+            buckets[i] = Timestamp.valueOf(counter.getKey().bucket).toString();
+            appIds[i] = counter.getKey().appId;
+            uriIds[i] = counter.getKey().uriId;
+            hits[i] = counter.getValue();
+            i++;
+        }
+        params.addValue("pendingBuckets", buckets);
+        params.addValue("pendingAppIds", appIds);
+        params.addValue("pendingUriIds", uriIds);
+        params.addValue("pendingHits", hits);
+        return "unnest(cast(:pendingBuckets as timestamp[]), :pendingAppIds, :pendingUriIds, :pendingHits) " +
+                "as p (bucket, app_id, uri_id, hits)";
+    }
+
+    private static class TransactionCounters {
+        private final Map<RollupKey, Long> counters = new HashMap<>();
+    }
+
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    private static class RollupKey {
+        private final LocalDateTime bucket;
+        private final long appId;
+        private final long uriId;
+    }
+}
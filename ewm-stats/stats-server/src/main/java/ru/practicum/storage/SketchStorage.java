@@ -0,0 +1,395 @@
+package ru.practicum.storage;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.practicum.StatsDtoResponse;
+import ru.practicum.model.AppUri;
+import ru.practicum.model.Hit;
+import ru.practicum.sketch.Hashing;
+import ru.practicum.sketch.HyperLogLog;
+
+import javax.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hourly HyperLogLog sketches of visitor ips per app and uri, used for approximate unique counts, and
+ * day sketches built from them once a day is closed.
+ * <p>
+ * Added hits are merged into pending sketches in memory once their transaction commits, and pending
+ * sketches are flushed every {@code flushIntervalMs}, or soon after {@code maxPending} of them are
+ * held, so a busy sketch is rewritten once per flush instead of once per batch. Adding an ip twice
+ * does not change a sketch, so a batch that is written again after a failure is harmless. Queries see
+ * pending sketches too; sketches still pending when the process dies are lost.
+ */
+@Repository
+@ConditionalOnProperty(name = "ewm-stats-service.storage.engine", havingValue = "postgres", matchIfMissing = true)
+@Slf4j
+public class SketchStorage {
+    private static final String HOUR_TABLE = "hits_hour_hll";
+    private static final String DAY_TABLE = "hits_day_hll";
+    private static final String CREATE_SKETCH = "insert into %s (bucket, app_id, uri_id, sketch) " +
+            "values (?, ?, ?, ''::bytea) on conflict (bucket, app_id, uri_id) do nothing";
+    private static final String UPDATE_SKETCH = "update %s set sketch = ? " +
+            "where bucket = ? and app_id = ? and uri_id = ?";
+    private static final int LOCK_CHUNK = 1000;
+    private static final Comparator<SketchKey> KEY_ORDER = Comparator.comparing((SketchKey key) -> key.bucket)
+            .thenComparingLong(key -> key.appId)
+            .thenComparingLong(key -> key.uriId);
+    private final Map<SketchKey, HyperLogLog> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+    private final UriDictionary uriDictionary;
+    private final RetentionPolicy retentionPolicy;
+    private final TaskScheduler taskScheduler;
+    private final TransactionTemplate transaction;
+    private final int precision;
+    private final int maxPending;
+
+    public SketchStorage(NamedParameterJdbcTemplate jdbcTemplate,
+                         UriDictionary uriDictionary,
+                         RetentionPolicy retentionPolicy,
+                         TaskScheduler taskScheduler,
+                         PlatformTransactionManager transactionManager,
+                         @Value("${ewm-stats-service.hll.precision:12}") int precision,
+                         @Value("${ewm-stats-service.hll.max-pending:10000}") int maxPending) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.uriDictionary = uriDictionary;
+        this.retentionPolicy = retentionPolicy;
+        this.taskScheduler = taskScheduler;
+        this.transaction = new TransactionTemplate(transactionManager);
+        this.transaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.precision = precision;
+        this.maxPending = maxPending;
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    public double getRelativeError() {
+        return HyperLogLog.relativeError(precision);
+    }
+
+    /**
+     * Adds the hits to the pending hour sketches, once the surrounding transaction commits if there is
+     * one.
+     */
+    public void add(List<Hit> hits) {
+        if (hits.isEmpty()) {
+            return;
+        }
+        boolean deferred = TransactionSynchronizationManager.isSynchronizationActive();
+        Map<SketchKey, HyperLogLog> sketches = deferred ? transactionSketches() : new HashMap<>();
+        for (Hit hit : hits) {
+            SketchKey key = new SketchKey(RangePlan.floor(hit.getTimestamp(), RangePlan.Granularity.HOUR.getUnit()),
+                    hit.getApp().getId(), hit.getUri().getId());
+            sketches.computeIfAbsent(key, k -> new HyperLogLog(precision)).add(Hashing.hashIp(hit.getIp()));
+        }
+        if (!deferred) {
+            addPending(sketches);
+        }
+    }
+
+    /**
+     * Writes the pending sketches: hour sketches always, and day sketches of closed days that already
+     * have them, so late hits reach a built day too. Sketches are put back if the write fails.
+     */
+    @Scheduled(fixedDelayString = "${ewm-stats-service.hll.flush-interval-ms:1000}")
+    public synchronized void flush() {
+        flushRequested.set(false);
+        Map<SketchKey, HyperLogLog> hours = new TreeMap<>(KEY_ORDER);
+        for (SketchKey key : pending.keySet()) {
+            HyperLogLog sketch = pending.remove(key);
+            if (sketch != null) {
+                hours.put(key, sketch);
+            }
+        }
+        if (hours.isEmpty()) {
+            return;
+        }
+        try {
+            transaction.executeWithoutResult(status -> {
+                merge(HOUR_TABLE, hours);
+                Optional<LocalDate> lastBuilt = findLastDay();
+                if (lastBuilt.isPresent()) {
+                    merge(DAY_TABLE, toDays(hours, lastBuilt.get().plusDays(1).atStartOfDay()));
+                }
+            });
+        } catch (RuntimeException e) {
+            log.error("Flushing {} sketches failed, kept for the next flush: {}", hours.size(), e.getMessage());
+            putPending(hours);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        flush();
+    }
+
+    /**
+     * Merges the hour sketches of {@code day} into its day sketches, keeping the hour sketches. Merging
+     * is idempotent, so a day can be built again, e.g. after late hits. Must run in a transaction.
+     *
+     * @return number of hour sketches merged
+     */
+    public int buildDay(LocalDate day) {
+        MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("from", Timestamp.valueOf(day.atStartOfDay()))
+                .addValue("to", Timestamp.valueOf(day.plusDays(1).atStartOfDay()));
+        Map<SketchKey, HyperLogLog> sketches = new TreeMap<>(KEY_ORDER);
+        int[] merged = {0};
+        jdbcTemplate.query("select app_id, uri_id, sketch from hits_hour_hll " +
+                "where bucket >= :from and bucket < :to and length(sketch) > 0 " +
+                "order by bucket, app_id, uri_id for update", params, rs -> {
+                    sketches.computeIfAbsent(new SketchKey(day.atStartOfDay(), rs.getLong(1), rs.getLong(2)),
+                            k -> new HyperLogLog(precision)).merge(HyperLogLog.fromBytes(rs.getBytes(3)));
+                    merged[0]++;
+                });
+        merge(DAY_TABLE, sketches);
+        return merged[0];
+    }
+
+    /**
+     * Builds the day sketches of {@code day} and deletes its hour sketches. Must run in a transaction.
+     *
+     * @return number of hour sketches compacted
+     */
+    public int compactDay(LocalDate day) {
+        buildDay(day);
+        return jdbcTemplate.update("delete from hits_hour_hll where bucket >= :from and bucket < :to",
+                new MapSqlParameterSource()
+                        .addValue("from", Timestamp.valueOf(day.atStartOfDay()))
+                        .addValue("to", Timestamp.valueOf(day.plusDays(1).atStartOfDay())));
+    }
+
+    /**
+     * @return first day that still has hour sketches before {@code before}
+     */
+    public Optional<LocalDate> findOldestHour(LocalDateTime before) {
+        Timestamp oldest = jdbcTemplate.queryForObject("select min(bucket) from hits_hour_hll where bucket < :before",
+                Map.of("before", Timestamp.valueOf(before)), Timestamp.class);
+        return Optional.ofNullable(oldest).map(timestamp -> timestamp.toLocalDateTime().toLocalDate());
+    }
+
+    /**
+     * @return last day with day sketches
+     */
+    public Optional<LocalDate> findLastDay() {
+        Timestamp last = jdbcTemplate.getJdbcTemplate().queryForObject("select max(bucket) from hits_day_hll",
+                Timestamp.class);
+        return Optional.ofNullable(last).map(timestamp -> timestamp.toLocalDateTime().toLocalDate());
+    }
+
+    private Map<SketchKey, HyperLogLog> transactionSketches() {
+        TransactionSketches bound = (TransactionSketches) TransactionSynchronizationManager.getResource(this);
+        if (bound == null) {
+            TransactionSketches created = new TransactionSketches();
+            TransactionSynchronizationManager.bindResource(this, created);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    addPending(created.sketches);
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResource(SketchStorage.this);
+                }
+            });
+            bound = created;
+        }
+        return bound.sketches;
+    }
+
+    /**
+     * Adds sketches to the pending ones. Once {@code maxPending} are held a flush is handed to the
+     * scheduler, never run here: this runs after commit, while the caller still holds its connection.
+     */
+    private void addPending(Map<SketchKey, HyperLogLog> sketches) {
+        putPending(sketches);
+        if (pending.size() >= maxPending && flushRequested.compareAndSet(false, true)) {
+            taskScheduler.schedule(this::flush, Instant.now());
+        }
+    }
+
+    private void putPending(Map<SketchKey, HyperLogLog> sketches) {
+        sketches.forEach((key, sketch) -> pending.merge(key, sketch, (held, added) -> {
+            held.merge(added);
+            return held;
+        }));
+    }
+
+    private Map<SketchKey, HyperLogLog> toDays(Map<SketchKey, HyperLogLog> hours, LocalDateTime until) {
+        Map<SketchKey, HyperLogLog> days = new TreeMap<>(KEY_ORDER);
+        hours.forEach((key, sketch) -> {
+            if (key.bucket.isBefore(until)) {
+                days.computeIfAbsent(new SketchKey(key.bucket.toLocalDate().atStartOfDay(), key.appId, key.uriId),
+                        k -> new HyperLogLog(precision)).merge(sketch);
+            }
+        });
+        return days;
+    }
+
+
+    private void merge(String table, Map<SketchKey, HyperLogLog> sketches) {
+        if (sketches.isEmpty()) {
+            return;
+        }
+        List<SketchKey> keys = new ArrayList<>(sketches.keySet());
+        jdbcTemplate.getJdbcTemplate().batchUpdate(String.format(CREATE_SKETCH, table), keys, keys.size(),
+                (ps, key) -> {
+                    ps.setTimestamp(1, Timestamp.valueOf(key.bucket));
+                    ps.setLong(2, key.appId);
+                    ps.setLong(3, key.uriId);
+                });
+        lockSketches(table, keys).forEach((key, bytes) -> {
+            if (bytes.length > 0) {
+                sketches.get(key).merge(HyperLogLog.fromBytes(bytes));
+            }
+        });
+        jdbcTemplate.getJdbcTemplate().batchUpdate(String.format(UPDATE_SKETCH, table), keys, keys.size(),
+                (ps, key) -> {
+                    ps.setBytes(1, sketches.get(key).toBytes());
+                    ps.setTimestamp(2, Timestamp.valueOf(key.bucket));
+                    ps.setLong(3, key.appId);
+                    ps.setLong(4, key.uriId);
+                });
+    }
+
+    /**
+     * @param uriIds uris to count, all uris when empty
+     */
+    public List<StatsDtoResponse> getStatsUniq(LocalDateTime start, LocalDateTime end, Collection<Long> uriIds) {
+        Map<AppUri, HyperLogLog> sketches = getSketches(start, end, uriIds);
+        List<StatsDtoResponse> stats = new ArrayList<>(sketches.size());
+        sketches.forEach((key, sketch) -> stats.add(new StatsDtoResponse(key.getApp(), key.getUri(),
+                sketch.estimate())));
+        stats.sort(Comparator.comparing(StatsDtoResponse::getHits).reversed());
+        return stats;
+    }
+
+    /**
+     * Merged visitor sketch of every app and uri hit within {@code [start, end]}, pending sketches
+     * included. Past the hour retention whole days are merged, from day sketches and any hour sketches
+     * not compacted yet.
+     *
+     * @param uriIds uris to count, all uris when empty
+     */
+    public Map<AppUri, HyperLogLog> getSketches(LocalDateTime start, LocalDateTime end, Collection<Long> uriIds) {
+        Map<SketchId, HyperLogLog> sketches = new HashMap<>();
+        for (RangePlan.Segment segment : RangePlan.split(start, end.plusSeconds(1),
+                retentionPolicy.getSketchZones())) {
+            MapSqlParameterSource params = new MapSqlParameterSource()
+                    .addValue("from", Timestamp.valueOf(segment.getFrom()))
+                    .addValue("to", Timestamp.valueOf(segment.getTo()));
+            String uriFilter = StatsSql.uriFilter(uriIds, params);
+            if (segment.isRaw()) {
+                jdbcTemplate.query("select distinct app_id, uri_id, ip from hits " +
+                        "where timestamp >= :from and timestamp < :to" + uriFilter, params, rs -> {
+                            sketchFor(sketches, rs.getLong(1), rs.getLong(2)).add(Hashing.hashIp(rs.getString(3)));
+                        });
+            } else {
+                String sql = "select app_id, uri_id, sketch from %s " +
+                        "where bucket >= :from and bucket < :to and length(sketch) > 0" + uriFilter;
+                StringJoiner union = new StringJoiner(" union all ");
+                union.add(String.format(sql, HOUR_TABLE));
+                if (segment.getGranularity() == RangePlan.Granularity.DAY) {
+                    union.add(String.format(sql, DAY_TABLE));
+                }
+                jdbcTemplate.query(union.toString(), params, rs -> {
+                    sketchFor(sketches, rs.getLong(1), rs.getLong(2)).merge(HyperLogLog.fromBytes(rs.getBytes(3)));
+                });
+                mergePending(sketches, segment, uriIds);
+            }
+        }
+        Map<Long, String> apps = new HashMap<>();
+        jdbcTemplate.getJdbcTemplate().query("select id, name from apps", rs -> {
+            apps.put(rs.getLong(1), rs.getString(2));
+        });
+        Set<Long> foundUriIds = new HashSet<>();
+        sketches.keySet().forEach(key -> foundUriIds.add(key.uriId));
+        Map<Long, String> uris = uriDictionary.findUris(foundUriIds);
+        Map<AppUri, HyperLogLog> result = new HashMap<>();
+        sketches.forEach((key, sketch) -> result.put(new AppUri(apps.get(key.appId), uris.get(key.uriId)), sketch));
+        return result;
+    }
+
+    private Map<SketchKey, byte[]> lockSketches(String table, List<SketchKey> keys) {
+        Map<SketchKey, byte[]> sketches = new HashMap<>();
+        for (int from = 0; from < keys.size(); from += LOCK_CHUNK) {
+            StringJoiner tuples = new StringJoiner(", ");
+            List<Object> args = new ArrayList<>();
+            for (SketchKey key : keys.subList(from, Math.min(from + LOCK_CHUNK, keys.size()))) {
+                tuples.add("(?, ?, ?)");
+                args.add(Timestamp.valueOf(key.bucket));
+                args.add(key.appId);
+                args.add(key.uriId);
+            }
+            jdbcTemplate.getJdbcTemplate().query("select bucket, app_id, uri_id, sketch from " + table + " " +
+                    "where (bucket, app_id, uri_id) in (" + tuples + ") " +
+                    "order by bucket, app_id, uri_id for update", rs -> {
+                        sketches.put(new SketchKey(rs.getTimestamp(1).toLocalDateTime(), rs.getLong(2),
+                                rs.getLong(3)), rs.getBytes(4));
+                    }, args.toArray());
+        }
+        return sketches;
+    }
+
+    /**
+     * Merges the pending sketches of the segment that are not flushed yet.
+     */
+    private void mergePending(Map<SketchId, HyperLogLog> sketches, RangePlan.Segment segment,
+                              Collection<Long> uriIds) {
+        for (SketchKey key : pending.keySet()) {
+            if (!key.bucket.isBefore(segment.getFrom()) && key.bucket.isBefore(segment.getTo()) &&
+                    (uriIds.isEmpty() || uriIds.contains(key.uriId))) {
+                pending.computeIfPresent(key, (k, held) -> {
+                    sketchFor(sketches, key.appId, key.uriId).merge(held);
+                    return held;
+                });
+            }
+        }
+    }
+
+    private HyperLogLog sketchFor(Map<SketchId, HyperLogLog> sketches, long appId, long uriId) {
+        return sketches.computeIfAbsent(new SketchId(appId, uriId), k -> new HyperLogLog(precision));
+    }
+
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    private static class SketchKey {
+        private final LocalDateTime bucket;
+        private final long appId;
+        private final long uriId;
+    }
+
+    private static class TransactionSketches {
+        private final Map<SketchKey, HyperLogLog> sketches = new HashMap<>();
+    }
+
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    private static class SketchId {
+        private final long appId;
+        private final long uriId;
+    }
+}
@@ -0,0 +1,46 @@
+package ru.practicum.storage;
+
+import lombok.experimental.UtilityClass;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import ru.practicum.model.StatsQuery;
+
+import java.util.Collection;
+
+@UtilityClass
+class StatsSql {
+
+    static String appFilter(StatsQuery query, MapSqlParameterSource params) {
+        return appFilter(query.getApp(), params);
+    }
+
+    static String appFilter(String app, MapSqlParameterSource params) {
+        if (app == null) {
+            return "";
+        }
+        params.addValue("app", app);
+        return " and app_id = (select id from apps where name = :app)";
+    }
+
+    /**
+     * Binds uri ids as one {@code bigint[]} parameter, so that long uri lists do not turn into
+     * equally long {@code in} lists for Postgres to parse and plan.
+     *
+     * @param uriIds uris to filter by, no filter when empty
+     */
+    static String uriFilter(Collection<Long> uriIds, MapSqlParameterSource params) {
+        if (uriIds.isEmpty()) {
+            return "";
+        }
+        params.addValue("uriIds", uriIds.stream().mapToLong(Long::longValue).toArray());
+        return " and uri_id = any(:uriIds)";
+    }
+
+    static String page(StatsQuery query, MapSqlParameterSource params) {
+        params.addValue("offset", query.getOffset());
+        if (query.getLimit() == null) {
+            return " offset :offset";
+        }
+        params.addValue("limit", query.getLimit());
+        return " limit :limit offset :offset";
+    }
+}
@@ -0,0 +1,157 @@
+package ru.practicum.storage;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.practicum.model.Uri;
+
+import java.util.*;
+
+/**
+ * Interns hit uris into the {@code uris} table. Recently used ids are kept in a bounded LRU cache;
+ * missing uris are looked up and created in bulk, in their own transaction, with
+ * {@code on conflict} on the unique uri guarding against concurrent creation. Uris are interned
+ * before the caller opens its own transaction, so creation never waits for a second connection
+ * while the caller holds one.
+ * <p>
+ * Uris are unique by their md5 and looked up by it, as a btree entry cannot hold the longest uris.
+ * For the same reason prefix lookups are range scans of a {@code text_pattern_ops} index on the first
+ * {@code 500} characters of the uri, rechecked against the full uri, so they see every committed uri
+ * without keeping a copy of the table in memory.
+ */
+@Repository
+@ConditionalOnProperty(name = "ewm-stats-service.storage.engine", havingValue = "postgres", matchIfMissing = true)
+public class UriDictionary {
+    private static final String INSERT_URI = "insert into uris (uri) values (?) on conflict (md5(uri)) do nothing";
+    private static final int CHUNK = 1000;
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transaction;
+    private final Map<String, Long> ids;
+
+    public UriDictionary(NamedParameterJdbcTemplate jdbcTemplate,
+                         PlatformTransactionManager transactionManager,
+                         @Value("${ewm-stats-service.uris.cache-size:100000}") int cacheSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transaction = new TransactionTemplate(transactionManager);
+        this.transaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.ids = Collections.synchronizedMap(new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > cacheSize;
+            }
+        });
+    }
+
+    public Map<String, Uri> get(Collection<String> uris) {
+        Map<String, Long> found = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String uri : uris) {
+            Long id = ids.get(uri);
+            if (id != null) {
+                found.put(uri, id);
+            } else {
+                missing.add(uri);
+            }
+        }
+        if (!missing.isEmpty()) {
+            Map<String, Long> created = findOrCreate(missing);
+            ids.putAll(created);
+            found.putAll(created);
+        }
+        Map<String, Uri> result = new HashMap<>();
+        found.forEach((uri, id) -> result.put(uri, Uri.builder()
+                .id(id)
+                .path(uri)
+                .build()));
+        return result;
+    }
+
+    public List<Long> findIds(Collection<String> uris) {
+        return new ArrayList<>(find(uris).values());
+    }
+
+    /**
+     * @return ids of the uris that exist, by uri
+     */
+    public Map<String, Long> find(Collection<String> uris) {
+        Map<String, Long> result = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String uri : uris) {
+            Long id = ids.get(uri);
+            if (id != null) {
+                result.put(uri, id);
+            } else {
+                missing.add(uri);
+            }
+        }
+        if (!missing.isEmpty()) {
+            Map<String, Long> found = select(missing);
+            ids.putAll(found);
+            result.putAll(found);
+        }
+        return result;
+    }
+
+    /**
+     * Prefix matches skip the id cache, so a broad prefix cannot evict the uris ingest keeps hitting.
+     *
+     * @return ids of all uris starting with {@code prefix}, by uri
+     */
+    public Map<String, Long> findByPrefix(String prefix) {
+        Map<String, Long> found = new HashMap<>();
+        jdbcTemplate.query("select id, uri from uris where left(uri, 500) ~>=~ left(:prefix, 500) " +
+                "and left(uri, 500) ~<~ (left(:prefix, 500) || chr(1114111)) and starts_with(uri, :prefix)",
+                Map.of("prefix", prefix), rs -> {
+                    found.put(rs.getString(2), rs.getLong(1));
+                });
+        return found;
+    }
+
+    public Map<Long, String> findUris(Collection<Long> uriIds) {
+        Map<Long, String> result = new HashMap<>();
+        List<Long> all = new ArrayList<>(uriIds);
+        for (int from = 0; from < all.size(); from += CHUNK) {
+            jdbcTemplate.query("select id, uri from uris where id in (:ids)",
+                    Map.of("ids", all.subList(from, Math.min(from + CHUNK, all.size()))), rs -> {
+                        result.put(rs.getLong(1), rs.getString(2));
+                    });
+        }
+        return result;
+    }
+
+    private Map<String, Long> findOrCreate(List<String> uris) {
+        return transaction.execute(status -> {
+            Map<String, Long> found = select(uris);
+            List<String> missing = new ArrayList<>();
+            for (String uri : uris) {
+                if (!found.containsKey(uri)) {
+                    missing.add(uri);
+                }
+            }
+            if (!missing.isEmpty()) {
+                Collections.sort(missing);
+                jdbcTemplate.getJdbcTemplate().batchUpdate(INSERT_URI, missing, missing.size(),
+                        (ps, uri) -> ps.setString(1, uri));
+                found.putAll(select(missing));
+            }
+            return found;
+        });
+    }
+
+    private Map<String, Long> select(List<String> uris) {
+        Map<String, Long> found = new HashMap<>();
+        for (int from = 0; from < uris.size(); from += CHUNK) {
+            jdbcTemplate.query("select id, uri from uris where md5(uri) in " +
+                            "(select md5(value) from unnest(cast(:uris as text[])) as u (value)) and uri = any(:uris)",
+                    Map.of("uris", uris.subList(from, Math.min(from + CHUNK, uris.size())).toArray(String[]::new)),
+                    rs -> {
+                        found.put(rs.getString(2), rs.getLong(1));
+                    });
+        }
+        return found;
+    }
+}
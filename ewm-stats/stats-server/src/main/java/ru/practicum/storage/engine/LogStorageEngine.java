@@ -0,0 +1,308 @@
+package ru.practicum.storage.engine;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import ru.practicum.HitCodec;
+import ru.practicum.StatsDtoRequest;
+import ru.practicum.StatsDtoResponse;
+import ru.practicum.model.AppUri;
+import ru.practicum.model.StatsQuery;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Embedded append-only storage on local disk, for a single node running without Postgres.
+ * <p>
+ * Hits are appended to segment files as records of length, CRC32 and a {@link HitCodec} record, the
+ * framing the spool uses, and a new segment is started once the current one reaches
+ * {@code segmentSize} bytes. The range of timestamps of every segment is kept in memory, so queries
+ * skip segments outside their range and scan the others in full. A torn record at the end of the
+ * last segment is cut off on startup. Features that are built on Postgres are rejected at startup
+ * rather than silently ignored.
+ */
+@Component
+@ConditionalOnProperty(name = "ewm-stats-service.storage.engine", havingValue = "log")
+@Slf4j
+public class LogStorageEngine implements StorageEngine {
+    private static final String PREFIX = "hits-";
+    private static final String SUFFIX = ".log";
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+    private static final Comparator<StatsDtoResponse> STATS_ORDER = Comparator
+            .comparing(StatsDtoResponse::getHits, Comparator.reverseOrder())
+            .thenComparing(StatsDtoResponse::getApp)
+            .thenComparing(StatsDtoResponse::getUri);
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private final Path directory;
+    private final long segmentSize;
+    private FileChannel current;
+    private long nextSequence;
+
+    public LogStorageEngine(@Value("${ewm-stats-service.storage.log.directory:hits-log}") String directory,
+                            @Value("${ewm-stats-service.storage.log.segment-size:67108864}") long segmentSize,
+                            @Value("${ewm-stats-service.replicas.urls:}") List<String> replicaUrls,
+                            @Value("${ewm-stats-service.archive.enabled:false}") boolean archiveEnabled,
+                            @Value("${ewm-stats-service.hot-window.enabled:false}") boolean hotWindowEnabled) {
+        if (!replicaUrls.isEmpty() || archiveEnabled || hotWindowEnabled) {
+            throw new IllegalStateException(
+                    "Replicas, the archive and the hot window need the postgres storage engine");
+        }
+        this.directory = Paths.get(directory);
+        this.segmentSize = segmentSize;
+    }
+
+    @PostConstruct
+    public void open() throws IOException {
+        Files.createDirectories(directory);
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(file -> file.getFileName().toString().startsWith(PREFIX) &&
+                            file.getFileName().toString().endsWith(SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        long[] rows = {0};
+        for (Path file : files) {
+            Segment segment = new Segment(file);
+            long fileSize = Files.size(file);
+            segment.size = read(file, fileSize, request -> {
+                segment.extend(request.getTimestamp());
+                rows[0]++;
+            });
+            if (segment.size < fileSize) {
+                log.warn("Hit log segment {} has a torn tail of {} bytes", file.getFileName(),
+                        fileSize - segment.size);
+            }
+            segments.add(segment);
+        }
+        if (!files.isEmpty()) {
+            Segment last = segments.get(segments.size() - 1);
+            current = FileChannel.open(last.path, StandardOpenOption.WRITE);
+            current.truncate(last.size);
+            current.position(last.size);
+            nextSequence = sequence(last.path) + 1;
+        }
+        log.info("Hit log opened in {}, segments: {}, hits: {}", directory.toAbsolutePath(), segments.size(),
+                rows[0]);
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+    }
+
+    /**
+     * Appends the batch to the current segment and syncs it before returning. If the write or the sync
+     * fails, the segment is cut back to its last synced size so the next batch does not land after a
+     * torn record; if even that fails, the next batch starts a new segment.
+     */
+    @Override
+    public synchronized void ingest(List<StatsDtoRequest> requests) {
+        if (requests.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CRC32 crc = new CRC32();
+        Segment segment = null;
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (StatsDtoRequest request : requests) {
+                byte[] record = HitCodec.encodeRecord(request);
+                crc.reset();
+                crc.update(record);
+                out.writeInt(record.length);
+                out.writeInt((int) crc.getValue());
+                out.write(record);
+            }
+            segment = segments.isEmpty() || current == null ? null : segments.get(segments.size() - 1);
+            if (segment == null || segment.size > 0 && segment.size + bytes.size() > segmentSize) {
+                segment = rotate();
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                current.write(buffer);
+            }
+            current.force(false);
+            for (StatsDtoRequest request : requests) {
+                segment.extend(request.getTimestamp());
+            }
+            segment.size += bytes.size();
+        } catch (IOException e) {
+            if (segment != null) {
+                rollBack(segment, e);
+            }
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void rollBack(Segment segment, IOException cause) {
+        try {
+            current.truncate(segment.size);
+            current.position(segment.size);
+            current.force(false);
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+            log.error("Hit log segment {} could not be cut back to {} bytes, next batch starts a new segment",
+                    segment.path.getFileName(), segment.size);
+            try {
+                current.close();
+            } catch (IOException suppressed) {
+                cause.addSuppressed(suppressed);
+            }
+            current = null;
+        }
+    }
+
+    @Override
+    public void aggregate(StatsQuery query, Consumer<StatsDtoResponse> consumer) {
+        Map<AppUri, Long> hits = new HashMap<>();
+        scan(query, request -> hits.merge(new AppUri(request.getApp(), request.getUri()), 1L, Long::sum));
+        List<StatsDtoResponse> stats = new ArrayList<>(hits.size());
+        hits.forEach((appUri, count) -> stats.add(new StatsDtoResponse(appUri.getApp(), appUri.getUri(), count)));
+        emit(stats, query, consumer);
+    }
+
+    @Override
+    public void distinct(StatsQuery query, Consumer<StatsDtoResponse> consumer) {
+        Map<AppUri, Set<String>> visitors = new HashMap<>();
+        scan(query, request -> visitors.computeIfAbsent(new AppUri(request.getApp(), request.getUri()),
+                key -> new HashSet<>()).add(request.getIp()));
+        List<StatsDtoResponse> stats = new ArrayList<>(visitors.size());
+        visitors.forEach((appUri, ips) -> stats.add(new StatsDtoResponse(appUri.getApp(), appUri.getUri(),
+                (long) ips.size())));
+        emit(stats, query, consumer);
+    }
+
+    private void scan(StatsQuery query, Consumer<StatsDtoRequest> consumer) {
+        long from = query.getStart().toEpochSecond(ZoneOffset.UTC);
+        long to = query.getEnd().toEpochSecond(ZoneOffset.UTC);
+        Set<String> uris = query.getUris() == null ? Collections.emptySet() : new HashSet<>(query.getUris());
+        for (Segment segment : segments) {
+            long size = segment.size;
+            if (size == 0 || segment.maxSecond < from || segment.minSecond > to) {
+                continue;
+            }
+            read(segment.path, size, request -> {
+                long second = request.getTimestamp().toEpochSecond(ZoneOffset.UTC);
+                if (second >= from && second <= to &&
+                        (query.getApp() == null || query.getApp().equals(request.getApp())) &&
+                        (uris.isEmpty() || uris.contains(request.getUri()))) {
+                    consumer.accept(request);
+                }
+            });
+        }
+    }
+
+    /**
+     * Reads the records of the first {@code size} bytes of a segment, stopping at the first torn
+     * record.
+     *
+     * @return position after the last record read
+     */
+    private static int read(Path path, long size, Consumer<StatsDtoRequest> consumer) {
+        if (size == 0) {
+            return 0;
+        }
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        CRC32 crc = new CRC32();
+        int position = 0;
+        while (position + RECORD_HEADER_SIZE <= buffer.limit()) {
+            int length = buffer.getInt(position);
+            int start = position + RECORD_HEADER_SIZE;
+            if (length <= 0 || start + length > buffer.limit()) {
+                break;
+            }
+            ByteBuffer record = buffer.duplicate();
+            record.position(start).limit(start + length);
+            crc.reset();
+            crc.update(record.duplicate());
+            if ((int) crc.getValue() != buffer.getInt(position + Integer.BYTES)) {
+                log.error("Hit log record at {} of {} is corrupted, rest of the segment skipped", position,
+                        path.getFileName());
+                break;
+            }
+            consumer.accept(HitCodec.decodeRecord(record));
+            position = start + length;
+        }
+        return position;
+    }
+
+    private Segment rotate() throws IOException {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+        Path path = directory.resolve(String.format("%s%020d%s", PREFIX, nextSequence++, SUFFIX));
+        current = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        Segment segment = new Segment(path);
+        segments.add(segment);
+        log.info("Hit log segment {} started", path.getFileName());
+        return segment;
+    }
+
+    private static void emit(List<StatsDtoResponse> stats, StatsQuery query, Consumer<StatsDtoResponse> consumer) {
+        stats.sort(STATS_ORDER);
+        stats.stream()
+                .skip(query.getOffset())
+                .limit(query.getLimit() == null ? Long.MAX_VALUE : query.getLimit())
+                .forEach(consumer);
+    }
+
+    private static long sequence(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * Segment file with the timestamps it holds. The size is written last, after the records are
+     * synced and the range extended, so a reader that reads the size first sees a range covering them.
+     */
+    private static class Segment {
+        private final Path path;
+        private volatile long minSecond = Long.MAX_VALUE;
+        private volatile long maxSecond = Long.MIN_VALUE;
+        private volatile long size;
+
+        private Segment(Path path) {
+            this.path = path;
+        }
+
+        void extend(LocalDateTime timestamp) {
+            long second = timestamp.toEpochSecond(ZoneOffset.UTC);
+            if (second < minSecond) {
+                minSecond = second;
+            }
+            if (second > maxSecond) {
+                maxSecond = second;
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package ru.practicum.storage.engine;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import ru.practicum.StatsDtoRequest;
+import ru.practicum.StatsDtoResponse;
+import ru.practicum.model.StatsQuery;
+import ru.practicum.service.HitWriter;
+import ru.practicum.storage.AppDictionary;
+import ru.practicum.storage.HitJdbcStorage;
+import ru.practicum.storage.RollupStorage;
+import ru.practicum.storage.UriDictionary;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Hits in Postgres, with rollups and sketches maintained at ingest. Apps and uris are resolved before
+ * the hits are written, outside of the write transaction. Hit counts are read from rollups and only the
+ * unaligned edges of a range from raw hits.
+ */
+@Component
+@ConditionalOnProperty(name = "ewm-stats-service.storage.engine", havingValue = "postgres", matchIfMissing = true)
+@RequiredArgsConstructor
+public class PostgresStorageEngine implements StorageEngine {
+    private final HitWriter hitWriter;
+    private final AppDictionary appDictionary;
+    private final HitJdbcStorage hitJdbcStorage;
+    private final RollupStorage rollupStorage;
+    private final UriDictionary uriDictionary;
+
+    @Override
+    public void ingest(List<StatsDtoRequest> requests) {
+        Set<String> apps = new HashSet<>();
+        Set<String> uris = new HashSet<>();
+        for (StatsDtoRequest request : requests) {
+            apps.add(request.getApp());
+            uris.add(request.getUri());
+        }
+        hitWriter.write(requests, appDictionary.get(apps), uriDictionary.get(uris));
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public void aggregate(StatsQuery query, Consumer<StatsDtoResponse> consumer) {
+        findUriIds(query).ifPresent(uriIds -> rollupStorage.query(query, uriIds, consumer));
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public void distinct(StatsQuery query, Consumer<StatsDtoResponse> consumer) {
+        findUriIds(query).ifPresent(uriIds -> hitJdbcStorage.queryUniq(query, uriIds, consumer));
+    }
+
+    @Override
+    public boolean hasRollups() {
+        return true;
+    }
+
+    /**
+     * @return ids of the queried uris, all uris when empty; nothing if none of them exists
+     */
+    private Optional<List<Long>> findUriIds(StatsQuery query) {
+        List<String> uris = query.getUris() == null ? Collections.emptyList() : query.getUris();
+        List<Long> uriIds = uriDictionary.findIds(uris);
+        if (!uris.isEmpty() && uriIds.isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.of(uriIds);
+    }
+}
@@ -0,0 +1,36 @@
+package ru.practicum.storage.engine;
+
+import ru.practicum.StatsDtoRequest;
+import ru.practicum.StatsDtoResponse;
+import ru.practicum.model.StatsQuery;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Persistence of hits behind the stats service, selected by {@code ewm-stats-service.storage.engine}.
+ */
+public interface StorageEngine {
+
+    void ingest(List<StatsDtoRequest> requests);
+
+    /**
+     * Streams hit counts per app and uri within {@code [start, end]} of the query, ordered by hits
+     * descending, app and uri, and paged.
+     */
+    void aggregate(StatsQuery query, Consumer<StatsDtoResponse> consumer);
+
+    /**
+     * Streams exact counts of distinct ips, ordered and paged as {@link #aggregate}.
+     */
+    void distinct(StatsQuery query, Consumer<StatsDtoResponse> consumer);
+
+    /**
+     * @return whether hits are kept in the Postgres schema with its rollups, sketches and uri
+     * dictionary, which caching, archiving, approximate counts and every query other than
+     * {@link #aggregate} and {@link #distinct} are built on
+     */
+    default boolean hasRollups() {
+        return false;
+    }
+}
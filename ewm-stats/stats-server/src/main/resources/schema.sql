@@ -1,19 +1,102 @@
-DROP TABLE IF EXISTS apps, hits CASCADE;
+DROP TABLE IF EXISTS apps, uris, hits, hits_minute, hits_hour, hits_day, hits_hour_hll, hits_day_hll, archive_segments CASCADE;
 
 CREATE TABLE IF NOT EXISTS apps
 (
     id   BIGINT GENERATED BY DEFAULT AS IDENTITY NOT NULL,
     name VARCHAR(128)                            NOT NULL,
-    CONSTRAINT pk_apps PRIMARY KEY (id)
+    CONSTRAINT pk_apps PRIMARY KEY (id),
+    CONSTRAINT uq_apps_name UNIQUE (name)
 );
 
+CREATE TABLE IF NOT EXISTS uris
+(
+    id  BIGINT GENERATED BY DEFAULT AS IDENTITY NOT NULL,
+    uri VARCHAR(4000)                           NOT NULL,
+    CONSTRAINT pk_uris PRIMARY KEY (id)
+);
+
+CREATE UNIQUE INDEX IF NOT EXISTS uq_uris_uri_md5 ON uris (md5(uri));
+
+CREATE INDEX IF NOT EXISTS ix_uris_uri_pattern ON uris (left(uri, 500) text_pattern_ops);
+
 CREATE TABLE IF NOT EXISTS hits
 (
-    id        BIGINT GENERATED BY DEFAULT AS IDENTITY NOT NULL,
-    app_id    BIGINT                                  NOT NULL,
-    uri       VARCHAR(4000)                           NOT NULL,
-    ip        VARCHAR(32)                             NOT NULL,
-    timestamp TIMESTAMP WITHOUT TIME ZONE             NOT NULL,
-    CONSTRAINT pk_hits PRIMARY KEY (id),
-    CONSTRAINT fk_hits_apps FOREIGN KEY (app_id) REFERENCES apps (id)
-);
\ No newline at end of file
+    id        BIGSERIAL                   NOT NULL,
+    app_id    BIGINT                      NOT NULL,
+    uri_id    BIGINT                      NOT NULL,
+    ip        INET                        NOT NULL,
+    timestamp TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+    CONSTRAINT pk_hits PRIMARY KEY (id, timestamp),
+    CONSTRAINT fk_hits_apps FOREIGN KEY (app_id) REFERENCES apps (id),
+    CONSTRAINT fk_hits_uris FOREIGN KEY (uri_id) REFERENCES uris (id)
+) PARTITION BY RANGE (timestamp);
+
+CREATE TABLE IF NOT EXISTS hits_default PARTITION OF hits DEFAULT;
+
+CREATE INDEX IF NOT EXISTS ix_hits_timestamp ON hits (timestamp);
+
+CREATE INDEX IF NOT EXISTS ix_hits_uri_timestamp ON hits (uri_id, timestamp) INCLUDE (ip);
+
+CREATE TABLE IF NOT EXISTS hits_minute
+(
+    bucket TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+    app_id BIGINT                      NOT NULL,
+    uri_id BIGINT                      NOT NULL,
+    hits   BIGINT                      NOT NULL,
+    CONSTRAINT pk_hits_minute PRIMARY KEY (bucket, app_id, uri_id),
+    CONSTRAINT fk_hits_minute_apps FOREIGN KEY (app_id) REFERENCES apps (id),
+    CONSTRAINT fk_hits_minute_uris FOREIGN KEY (uri_id) REFERENCES uris (id)
+);
+
+CREATE TABLE IF NOT EXISTS hits_hour
+(
+    bucket TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+    app_id BIGINT                      NOT NULL,
+    uri_id BIGINT                      NOT NULL,
+    hits   BIGINT                      NOT NULL,
+    CONSTRAINT pk_hits_hour PRIMARY KEY (bucket, app_id, uri_id),
+    CONSTRAINT fk_hits_hour_apps FOREIGN KEY (app_id) REFERENCES apps (id),
+    CONSTRAINT fk_hits_hour_uris FOREIGN KEY (uri_id) REFERENCES uris (id)
+);
+
+CREATE TABLE IF NOT EXISTS hits_day
+(
+    bucket TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+    app_id BIGINT                      NOT NULL,
+    uri_id BIGINT                      NOT NULL,
+    hits   BIGINT                      NOT NULL,
+    CONSTRAINT pk_hits_day PRIMARY KEY (bucket, app_id, uri_id),
+    CONSTRAINT fk_hits_day_apps FOREIGN KEY (app_id) REFERENCES apps (id),
+    CONSTRAINT fk_hits_day_uris FOREIGN KEY (uri_id) REFERENCES uris (id)
+);
+
+CREATE TABLE IF NOT EXISTS hits_hour_hll
+(
+    bucket TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+    app_id BIGINT                      NOT NULL,
+    uri_id BIGINT                      NOT NULL,
+    sketch BYTEA                       NOT NULL,
+    CONSTRAINT pk_hits_hour_hll PRIMARY KEY (bucket, app_id, uri_id),
+    CONSTRAINT fk_hits_hour_hll_apps FOREIGN KEY (app_id) REFERENCES apps (id),
+    CONSTRAINT fk_hits_hour_hll_uris FOREIGN KEY (uri_id) REFERENCES uris (id)
+);
+
+CREATE TABLE IF NOT EXISTS hits_day_hll
+(
+    bucket TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+    app_id BIGINT                      NOT NULL,
+    uri_id BIGINT                      NOT NULL,
+    sketch BYTEA                       NOT NULL,
+    CONSTRAINT pk_hits_day_hll PRIMARY KEY (bucket, app_id, uri_id),
+    CONSTRAINT fk_hits_day_hll_apps FOREIGN KEY (app_id) REFERENCES apps (id),
+    CONSTRAINT fk_hits_day_hll_uris FOREIGN KEY (uri_id) REFERENCES uris (id)
+);
+
+CREATE TABLE IF NOT EXISTS archive_segments
+(
+    name        VARCHAR(255)                NOT NULL,
+    day         DATE                        NOT NULL,
+    hits        BIGINT                      NOT NULL,
+    archived_at TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+    CONSTRAINT pk_archive_segments PRIMARY KEY (name)
+);